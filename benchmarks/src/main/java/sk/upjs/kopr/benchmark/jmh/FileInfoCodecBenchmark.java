@@ -0,0 +1,92 @@
+package sk.upjs.kopr.benchmark.jmh;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import sk.upjs.kopr.copy.FileBundle;
+import sk.upjs.kopr.copy.FileInfo;
+import sk.upjs.kopr.copy.protocol.FrameReader;
+import sk.upjs.kopr.copy.protocol.FrameWriter;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of the {@code REQUEST} frames that carry a {@link FileInfo}, with java serialization of the
+ * same object as the reference. One operation is a batch of {@link #BATCH} requests, as a pipelined socket sends them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileInfoCodecBenchmark {
+
+    private static final int BATCH = 1024;
+
+    @Param({"file", "chunk", "bundle"})
+    public String request;
+
+    private FileInfo fileInfo;
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private FrameWriter writer;
+    private byte[] encoded;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        String directory = "/home/user/data/projects/kopr/src/main/java/sk/upjs/kopr/copy/";
+        fileInfo = switch (request) {
+            case "file" -> new FileInfo(directory + "FileInfo.java", 0, 2048, 2048, 1700000000000L);
+            case "chunk" -> new FileInfo(directory + "archive.tar", 64L << 20, 72L << 20, 1L << 32, 1700000000000L);
+            default -> {
+                List<FileInfo> files = new ArrayList<>();
+                for (int i = 0; i < 64; i++) {
+                    files.add(new FileInfo(directory + "f" + i + ".txt", 0, 100 + i, 100 + i, 1700000000000L + i));
+                }
+                yield new FileBundle(files);
+            }
+        };
+        writer = new FrameWriter(buffer);
+        encodeBatch();
+        encoded = buffer.toByteArray();
+    }
+
+    private int encodeBatch() throws IOException {
+        buffer.reset();
+        for (int tag = 0; tag < BATCH; tag++) {
+            writer.writeRequest(tag, fileInfo);
+        }
+        writer.flush();
+        return buffer.size();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int encode() throws IOException {
+        return encodeBatch();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void decode(Blackhole blackhole) throws IOException {
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(encoded));
+        for (int i = 0; i < BATCH; i++) {
+            reader.readType();
+            blackhole.consume(reader.readVarInt());
+            blackhole.consume(reader.readFileInfo());
+        }
+    }
+
+    @Benchmark
+    public Object javaSerialization() throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(fileInfo);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return in.readObject();
+        }
+    }
+}
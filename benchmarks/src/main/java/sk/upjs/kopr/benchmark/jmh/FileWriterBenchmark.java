@@ -0,0 +1,85 @@
+package sk.upjs.kopr.benchmark.jmh;
+
+import org.openjdk.jmh.annotations.*;
+import sk.upjs.kopr.benchmark.DatasetGenerator;
+import sk.upjs.kopr.copy.client.MyFileWriter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Positional writes of {@link MyFileWriter} from several threads at once, as the data sockets of the client write.
+ * Every thread writes its own region, into one shared file or into files of its own. The files stay in the page cache,
+ * the benchmark measures the writer and its handle cache rather than the disk.
+ * <p>
+ * The number of writing threads is set with {@code -t}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class FileWriterBenchmark {
+
+    private static final long REGION = 16 << 20;
+    private static final int MAX_THREADS = 64;
+
+    @Param({"16384", "65536"})
+    public int blockSize;
+
+    @Param({"true", "false"})
+    public boolean sharedFile;
+
+    private Path root;
+    private MyFileWriter[] writers;
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Region {
+        private int index;
+        private long position;
+        private ByteBuffer block;
+
+        @Setup(Level.Trial)
+        public void setUp(FileWriterBenchmark benchmark) {
+            index = benchmark.threads.getAndIncrement() % MAX_THREADS;
+            byte[] data = new byte[benchmark.blockSize];
+            new SplittableRandom(index).nextBytes(data);
+            block = ByteBuffer.allocateDirect(benchmark.blockSize).put(data).flip();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("writer-benchmark");
+        writers = new MyFileWriter[sharedFile ? 1 : MAX_THREADS];
+        for (int i = 0; i < writers.length; i++) {
+            long length = sharedFile ? REGION * MAX_THREADS : REGION;
+            writers[i] = MyFileWriter.getInstance(root.resolve("f" + i).toFile(), length);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (MyFileWriter writer : writers) {
+            writer.close();
+        }
+        DatasetGenerator.delete(root);
+    }
+
+    @Benchmark
+    public long write(Region region) throws IOException {
+        MyFileWriter writer = writers[sharedFile ? 0 : region.index];
+        long offset = (sharedFile ? region.index * REGION : 0) + region.position;
+        writer.write(offset, region.block.rewind());
+        region.position = (region.position + blockSize) % REGION;
+        return offset;
+    }
+}
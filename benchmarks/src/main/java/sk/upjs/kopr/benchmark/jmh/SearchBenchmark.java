@@ -0,0 +1,59 @@
+package sk.upjs.kopr.benchmark.jmh;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import sk.upjs.kopr.benchmark.DatasetGenerator;
+import sk.upjs.kopr.tools.ScanIndex;
+import sk.upjs.kopr.tools.Searcher;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Searcher#search} over generated trees: a wide one with many sibling directories and a deep chain of nested
+ * directories, without and with a {@link ScanIndex} of the unchanged tree.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchBenchmark {
+
+    @Param({"wide", "deep"})
+    public String shape;
+
+    @Param({"20"})
+    public int filesPerDirectory;
+
+    @Param({"false", "true"})
+    public boolean indexed;
+
+    private Path root;
+    private Path tree;
+    private ScanIndex index;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("search-benchmark");
+        tree = shape.equals("deep")
+                ? DatasetGenerator.createDeepTree(root.resolve("tree"), 200, filesPerDirectory)
+                : DatasetGenerator.createWideTree(root.resolve("tree"), 500, filesPerDirectory);
+        if (indexed) {
+            index = ScanIndex.load(root.resolve("index.bin"), tree);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        DatasetGenerator.delete(root);
+    }
+
+    @Benchmark
+    public void search(Blackhole blackhole) {
+        Searcher.search(tree.toFile(), index, (file, size, lastModified) -> blackhole.consume(size));
+    }
+}
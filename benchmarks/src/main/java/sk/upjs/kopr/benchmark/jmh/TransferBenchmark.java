@@ -0,0 +1,117 @@
+package sk.upjs.kopr.benchmark.jmh;
+
+import org.openjdk.jmh.annotations.*;
+import sk.upjs.kopr.benchmark.DatasetGenerator;
+import sk.upjs.kopr.copy.FileInfo;
+import sk.upjs.kopr.copy.ProgressJournal;
+import sk.upjs.kopr.copy.TransferMode;
+import sk.upjs.kopr.copy.client.ClientConfig;
+import sk.upjs.kopr.copy.client.DeltaFiles;
+import sk.upjs.kopr.copy.client.FileCompletionTracker;
+import sk.upjs.kopr.copy.client.FileReceiveTask;
+import sk.upjs.kopr.copy.client.TransferProgress;
+import sk.upjs.kopr.copy.server.FileSendTask;
+import sk.upjs.kopr.copy.server.TransferPlanner;
+import sk.upjs.kopr.tools.PropertiesManager;
+import sk.upjs.kopr.tools.Searcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Copies a generated dataset over loopback with {@link FileSendTask}s on one end and {@link FileReceiveTask}s on
+ * the other, one pair per socket, the same way the server and the client do after the file list was exchanged.
+ * One operation is one complete copy of the dataset.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+
+    private static final PropertiesManager props = PropertiesManager.getInstance();
+
+    @Param({"small", "mixed", "large", "deep"})
+    public String distribution;
+
+    @Param({"1", "4"})
+    public int sockets;
+
+    @Param({"stream", "zerocopy"})
+    public String transferMode;
+
+    @Param({"64"})
+    public int megabytes;
+
+    private Path root;
+    private List<FileInfo> plan;
+    private ServerSocketChannel serverChannel;
+    private ExecutorService executor;
+    private ClientConfig config;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("transfer-benchmark");
+        Path source = root.resolve("source");
+        DatasetGenerator.generate(source, DatasetGenerator.Distribution.fromString(distribution), (long) megabytes << 20, 42);
+        config = ClientConfig.fromProperties().withPaths(source.toString(), root.resolve("copy").toString());
+
+        plan = new TransferPlanner(props.getChunkThreshold(), props.getChunkSize(), props.getBundleThreshold(),
+                props.getBundleSize()).plan(Searcher.search(source.toFile()));
+        for (FileInfo workItem : plan) {
+            for (FileInfo part : workItem.parts()) {
+                File copy = config.copyOf(part.fileName);
+                copy.getParentFile().mkdirs();
+                copy.createNewFile();
+            }
+        }
+
+        serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        serverChannel.close();
+        DatasetGenerator.delete(root);
+    }
+
+    @Benchmark
+    public long copy() throws Exception {
+        BlockingQueue<FileInfo> toSend = new LinkedBlockingQueue<>(plan);
+        BlockingQueue<FileInfo> toReceive = new LinkedBlockingQueue<>(plan);
+        FileCompletionTracker tracker = new FileCompletionTracker(toReceive);
+        ProgressJournal clientJournal = ProgressJournal.open(root.resolve("client.journal"), 1000, false, null);
+        // never started, the counters are only read at the end
+        TransferProgress progress = new TransferProgress(1000);
+
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < sockets; i++) {
+            SocketChannel clientSide = SocketChannel.open(serverChannel.getLocalAddress());
+            SocketChannel serverSide = serverChannel.accept();
+            futures.add(executor.submit(new FileSendTask(toSend, serverSide.socket(),
+                    TransferMode.fromString(transferMode), true, null)));
+            futures.add(executor.submit(new FileReceiveTask(toReceive, clientSide.socket(), new CountDownLatch(0), tracker,
+                    new DeltaFiles(config), clientJournal, progress, config, null)));
+        }
+        for (Future<Integer> future : futures) {
+            if (future.get() != 1) {
+                throw new IllegalStateException("Transfer over loopback failed");
+            }
+        }
+        clientJournal.delete();
+        return progress.getBytes();
+    }
+}
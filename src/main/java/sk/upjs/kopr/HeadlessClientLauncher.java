@@ -0,0 +1,75 @@
+package sk.upjs.kopr;
+
+import sk.upjs.kopr.copy.client.Client;
+import sk.upjs.kopr.copy.client.ClientConfig;
+import sk.upjs.kopr.copy.client.TransferSnapshot;
+import sk.upjs.kopr.metrics.Metrics;
+import sk.upjs.kopr.tools.PropertiesManager;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+
+/**
+ * Runs the client without the window, for servers and scripts. Arguments of the form {@code key=value} override
+ * config.properties, e.g. {@code directory=... pathToSave=... numberOfSockets=8}. The progress is printed once per
+ * second, the exit code is 0 when the copy finished and 1 when it failed.
+ */
+public class HeadlessClientLauncher {
+
+	private static final long PRINT_INTERVAL_NANOS = 1_000_000_000L;
+
+	public static void main(String[] args) throws InterruptedException {
+		PropertiesManager props = PropertiesManager.getInstance();
+		for (String arg : args) {
+			int separator = arg.indexOf('=');
+			if (separator <= 0) {
+				System.err.println("Expected key=value, got " + arg);
+				System.exit(2);
+			}
+			props.setProperty(arg.substring(0, separator), arg.substring(separator + 1));
+		}
+		Metrics.getInstance().startEndpoint(props.getMetricsPort());
+
+		Client client = new Client(ClientConfig.fromProperties());
+		client.progress().subscribe(new ConsoleSubscriber());
+		client.run();
+		try {
+			TransferSnapshot last = client.completion().get();
+			System.out.println("Copied " + last.files() + " files, " + last.bytes() / (1024 * 1024) + " MB");
+			System.exit(0);
+		} catch (ExecutionException e) {
+			System.err.println("Copying failed: " + e.getCause());
+			System.exit(1);
+		}
+	}
+
+	private static class ConsoleSubscriber implements Flow.Subscriber<TransferSnapshot> {
+
+		private long lastPrint = System.nanoTime();
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			subscription.request(Long.MAX_VALUE);
+		}
+
+		@Override
+		public void onNext(TransferSnapshot snapshot) {
+			long now = System.nanoTime();
+			if (now - lastPrint < PRINT_INTERVAL_NANOS) {
+				return;
+			}
+			lastPrint = now;
+			String left = snapshot.etaSeconds() < 0 ? "--:--" : String.format("%d:%02d", snapshot.etaSeconds() / 60, snapshot.etaSeconds() % 60);
+			System.out.println(String.format("%d/%d files, %d/%d MB, %.1f MB/s, ETA %s", snapshot.files(), snapshot.totalFiles(),
+					snapshot.bytes() / (1024 * 1024), snapshot.totalBytes() / (1024 * 1024), snapshot.bytesPerSecond() / (1024.0 * 1024), left));
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+		}
+
+		@Override
+		public void onComplete() {
+		}
+	}
+}
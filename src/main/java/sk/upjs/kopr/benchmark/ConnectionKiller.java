@@ -0,0 +1,110 @@
+package sk.upjs.kopr.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Relays the connections of the client to the server on loopback and drops all of them once, after
+ * {@code killAfterBytes} went from the server to the client, as a network failure in the middle of a copy would.
+ * Connections opened after the drop are relayed untouched, so the client can resume.
+ */
+public class ConnectionKiller implements Runnable {
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private final ServerSocket serverSocket;
+    private final int targetPort;
+    private final long killAfterBytes;
+    private final AtomicLong relayed = new AtomicLong();
+    private final AtomicBoolean killed = new AtomicBoolean();
+    private final List<Socket> connections = new CopyOnWriteArrayList<>();
+
+    public ConnectionKiller(int targetPort, long killAfterBytes) throws IOException {
+        this.serverSocket = new ServerSocket(0, 64, InetAddress.getLoopbackAddress());
+        this.targetPort = targetPort;
+        this.killAfterBytes = killAfterBytes;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public boolean isKilled() {
+        return killed.get();
+    }
+
+    public void start() {
+        daemon(this, "killer-accept").start();
+    }
+
+    @Override
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket client = serverSocket.accept();
+                Socket server = new Socket(InetAddress.getLoopbackAddress(), targetPort);
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                connections.add(client);
+                connections.add(server);
+                daemon(() -> relay(client, server, false), "killer-up").start();
+                daemon(() -> relay(server, client, true), "killer-down").start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void relay(Socket from, Socket to, boolean countTowardsKill) {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = from.getInputStream(); OutputStream out = to.getOutputStream()) {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+                if (countTowardsKill && relayed.addAndGet(read) >= killAfterBytes && killed.compareAndSet(false, true)) {
+                    killAll();
+                }
+            }
+        } catch (IOException e) {
+            // the other direction or the kill closed the connection
+        } finally {
+            close(from);
+            close(to);
+            connections.remove(from);
+            connections.remove(to);
+        }
+    }
+
+    private void killAll() {
+        for (Socket connection : connections) {
+            close(connection);
+        }
+    }
+
+    public void close() {
+        close(serverSocket);
+        killAll();
+    }
+
+    private static void close(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            // already closed
+        }
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,171 @@
+package sk.upjs.kopr.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.stream.Stream;
+
+/**
+ * Generates reproducible directory trees for the benchmarks. The same seed gives the same names, sizes and contents.
+ * <p>
+ * Run with {@code java -cp target/classes sk.upjs.kopr.benchmark.DatasetGenerator <directory> <small|mixed|large|deep> [MB] [seed]}.
+ */
+public class DatasetGenerator {
+
+    private static final int FILES_PER_DIRECTORY = 100;
+    private static final int DEEP_FILES_PER_DIRECTORY = 10;
+    private static final int DEEP_DEPTH = 100;
+    private static final String[] WORDS = {"copy", "socket", "range", "frame", "journal", "server", "client", "bundle",
+            "chunk", "offset", "delta", "block", "queue", "thread", "latency", "throughput"};
+
+    /**
+     * How the sizes of the generated files are distributed.
+     */
+    public enum Distribution {
+        /**
+         * Files of 512 B to 16 kB, the case of source trees and mail folders, dominated by the per-file cost.
+         */
+        SMALL,
+        /**
+         * Sizes spread evenly on a logarithmic scale from 1 kB to 8 MB, a third of the files is text.
+         */
+        MIXED,
+        /**
+         * Four files sharing the whole size, dominated by the throughput of the sockets and disks.
+         */
+        LARGE,
+        /**
+         * Files of 1 kB to 64 kB, ten in every directory of chains 100 directories deep.
+         */
+        DEEP;
+
+        public static Distribution fromString(String value) {
+            return valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: DatasetGenerator <directory> <small|mixed|large|deep> [MB] [seed]");
+            System.exit(1);
+        }
+        long megabytes = args.length > 2 ? Long.parseLong(args[2]) : 256;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 42;
+        Dataset dataset = generate(Path.of(args[0]), Distribution.fromString(args[1]), megabytes << 20, seed);
+        System.out.println(dataset.files() + " files, " + dataset.bytes() + " bytes in " + args[0]);
+    }
+
+    public record Dataset(Path root, int files, long bytes) {
+    }
+
+    /**
+     * Fills {@code root} with files of the distribution until they hold at least {@code totalBytes}.
+     */
+    public static Dataset generate(Path root, Distribution distribution, long totalBytes, long seed) throws IOException {
+        SplittableRandom random = new SplittableRandom(seed);
+        byte[] buffer = new byte[65536];
+        int files = 0;
+        long bytes = 0;
+        while (bytes < totalBytes) {
+            long size = switch (distribution) {
+                case SMALL -> 512 + random.nextInt(16 * 1024 - 512);
+                case MIXED -> (long) Math.exp(Math.log(1024) + random.nextDouble() * (Math.log(8 << 20) - Math.log(1024)));
+                case LARGE -> Math.max(1, (totalBytes + 3) / 4);
+                case DEEP -> 1024 + random.nextInt(63 * 1024);
+            };
+            size = Math.min(size, Math.max(1, totalBytes - bytes));
+            boolean text = distribution == Distribution.MIXED && files % 3 == 0;
+            Path directory = Files.createDirectories(distribution == Distribution.DEEP
+                    ? deepDirectory(root, files / DEEP_FILES_PER_DIRECTORY)
+                    : root.resolve("d" + files / FILES_PER_DIRECTORY));
+            Path file = directory.resolve("f" + files + (text ? ".txt" : ".bin"));
+            try (OutputStream out = Files.newOutputStream(file)) {
+                long left = size;
+                while (left > 0) {
+                    int length = (int) Math.min(buffer.length, left);
+                    fill(random, buffer, length, text);
+                    out.write(buffer, 0, length);
+                    left -= length;
+                }
+            }
+            files++;
+            bytes += size;
+        }
+        return new Dataset(root, files, bytes);
+    }
+
+    /**
+     * @return the directory at the given position of the chains, a new chain starts every {@link #DEEP_DEPTH} directories
+     */
+    private static Path deepDirectory(Path root, int index) {
+        Path directory = root.resolve("chain" + index / DEEP_DEPTH);
+        for (int level = 0; level <= index % DEEP_DEPTH; level++) {
+            directory = directory.resolve("d" + level);
+        }
+        return directory;
+    }
+
+    private static void fill(SplittableRandom random, byte[] buffer, int length, boolean text) {
+        if (!text) {
+            for (int i = 0; i < length; i += 8) {
+                long value = random.nextLong();
+                for (int j = i; j < Math.min(length, i + 8); j++) {
+                    buffer[j] = (byte) value;
+                    value >>>= 8;
+                }
+            }
+            return;
+        }
+        int position = 0;
+        while (position < length) {
+            String word = WORDS[random.nextInt(WORDS.length)];
+            for (int i = 0; i < word.length() && position < length; i++) {
+                buffer[position++] = (byte) word.charAt(i);
+            }
+            if (position < length) {
+                buffer[position++] = (byte) (random.nextInt(12) == 0 ? '\n' : ' ');
+            }
+        }
+    }
+
+    /**
+     * A tree with {@code width} sibling directories of {@code filesPerDirectory} files each.
+     */
+    public static Path createWideTree(Path root, int width, int filesPerDirectory) throws IOException {
+        for (int i = 0; i < width; i++) {
+            createFiles(Files.createDirectories(root.resolve("d" + i)), filesPerDirectory);
+        }
+        return root;
+    }
+
+    /**
+     * A single chain of {@code depth} nested directories of {@code filesPerDirectory} files each.
+     */
+    public static Path createDeepTree(Path root, int depth, int filesPerDirectory) throws IOException {
+        Path directory = root;
+        for (int i = 0; i < depth; i++) {
+            directory = Files.createDirectories(directory.resolve("d" + i));
+            createFiles(directory, filesPerDirectory);
+        }
+        return root;
+    }
+
+    private static void createFiles(Path directory, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            Files.write(directory.resolve("f" + i + ".txt"), new byte[i]);
+        }
+    }
+
+    public static void delete(Path root) throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
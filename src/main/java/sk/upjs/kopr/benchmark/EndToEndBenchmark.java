@@ -0,0 +1,234 @@
+package sk.upjs.kopr.benchmark;
+
+import ch.qos.logback.classic.Level;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sk.upjs.kopr.copy.client.Client;
+import sk.upjs.kopr.copy.client.ClientConfig;
+import sk.upjs.kopr.copy.client.TransferSnapshot;
+import sk.upjs.kopr.copy.server.Server;
+import sk.upjs.kopr.metrics.Metrics;
+import sk.upjs.kopr.tools.PropertiesManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies generated datasets with the real {@link Server} and {@link Client} over loopback, without the window, and
+ * reports wall time, MB/s, files/s, CPU time and allocation rate of every scenario.
+ * <p>
+ * Every run is a fresh JVM: the server and the client keep their paths and sessions in static state, and a fresh
+ * process also keeps the CPU and allocation counts of one run apart from the others. The runs of a scenario share
+ * one generated dataset. With {@code --kill} every scenario is also copied once with all connections dropped after
+ * that fraction of the data, the difference to the uninterrupted run is the cost of the resume.
+ * <p>
+ * Run with {@code java -cp <classpath> sk.upjs.kopr.benchmark.EndToEndBenchmark [--scenarios small,large,mixed,deep]
+ * [--megabytes 256] [--runs 3] [--kill 0.5] [--work <directory>] [key=value ...]}, where the {@code key=value}
+ * arguments override {@code config.properties}, e.g. {@code numberOfSockets=8 transferMode=zerocopy}.
+ */
+public class EndToEndBenchmark {
+
+    private static final String CHILD = "--child";
+    private static final long RUN_TIMEOUT_MINUTES = 30;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals(CHILD)) {
+            child(args);
+            return;
+        }
+        List<String> scenarios = List.of("small", "large", "mixed", "deep");
+        long megabytes = 256;
+        int runs = 3;
+        double kill = 0;
+        Path work = null;
+        List<String> overrides = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--scenarios" -> scenarios = List.of(args[++i].split(","));
+                case "--megabytes" -> megabytes = Long.parseLong(args[++i]);
+                case "--runs" -> runs = Integer.parseInt(args[++i]);
+                case "--kill" -> kill = Double.parseDouble(args[++i]);
+                case "--work" -> work = Path.of(args[++i]);
+                default -> overrides.add(args[i]);
+            }
+        }
+        boolean keepWork = work != null;
+        work = keepWork ? Files.createDirectories(work) : Files.createTempDirectory("e2e-benchmark");
+
+        System.out.printf("%-8s %-8s %7s %9s %8s %9s %9s %8s %6s %11s %11s%n",
+                "scenario", "run", "files", "MB", "wall s", "MB/s", "files/s", "CPU s", "CPU %", "alloc MB/s", "tail idle s");
+        try {
+            for (String scenario : scenarios) {
+                Path source = work.resolve(scenario).resolve("source");
+                DatasetGenerator.delete(source);
+                DatasetGenerator.Dataset dataset = DatasetGenerator.generate(source,
+                        DatasetGenerator.Distribution.fromString(scenario), megabytes << 20, 42);
+                double cleanWall = 0;
+                for (int run = 1; run <= runs; run++) {
+                    Properties result = fork(work.resolve(scenario), source, -1, overrides);
+                    cleanWall += Double.parseDouble(result.getProperty("wallSeconds")) / runs;
+                    print(scenario, String.valueOf(run), result);
+                }
+                if (kill > 0) {
+                    // the relay costs time of its own, so the uninterrupted run for the comparison goes through it as well
+                    Properties relayed = fork(work.resolve(scenario), source, Long.MAX_VALUE, overrides);
+                    print(scenario, "relayed", relayed);
+                    Properties killed = fork(work.resolve(scenario), source, (long) (dataset.bytes() * kill), overrides);
+                    print(scenario, "killed", killed);
+                    double resume = Double.parseDouble(killed.getProperty("wallSeconds"))
+                            - Double.parseDouble(relayed.getProperty("wallSeconds"));
+                    System.out.printf("%-8s resume after %.0f %% of the data cost %.2f s (%s reconnects)%n",
+                            scenario, kill * 100, resume, killed.getProperty("reconnects"));
+                }
+                if (runs > 1) {
+                    System.out.printf("%-8s mean wall %.2f s%n", scenario, cleanWall);
+                }
+            }
+        } finally {
+            if (!keepWork) {
+                DatasetGenerator.delete(work);
+            }
+        }
+    }
+
+    private static void print(String scenario, String run, Properties result) {
+        double wall = Double.parseDouble(result.getProperty("wallSeconds"));
+        long bytes = Long.parseLong(result.getProperty("bytes"));
+        long files = Long.parseLong(result.getProperty("files"));
+        double cpu = Double.parseDouble(result.getProperty("cpuSeconds"));
+        long allocated = Long.parseLong(result.getProperty("allocatedBytes"));
+        int processors = Integer.parseInt(result.getProperty("processors"));
+        double tailIdle = Double.parseDouble(result.getProperty("tailIdleSeconds"));
+        System.out.printf("%-8s %-8s %7d %9.1f %8.2f %9.1f %9.1f %8.2f %6.0f %11s %11.2f%n",
+                scenario, run, files, bytes / 1048576.0, wall, bytes / 1048576.0 / wall, files / wall, cpu,
+                cpu / wall / processors * 100, allocated < 0 ? "n/a" : String.format("%.1f", allocated / 1048576.0 / wall), tailIdle);
+        if (!Boolean.parseBoolean(result.getProperty("finished"))) {
+            System.out.println(scenario + " " + run + " did not finish, see the log in its directory");
+        }
+    }
+
+    /**
+     * Copies {@code source} in a new JVM working in {@code directory}.
+     *
+     * @param killAfterBytes drops the connections after this many bytes, -1 connects the client straight to the server
+     */
+    private static Properties fork(Path directory, Path source, long killAfterBytes, List<String> overrides) throws Exception {
+        Path copy = directory.resolve("copy");
+        DatasetGenerator.delete(copy);
+        for (String journal : List.of("client_progress.journal", "scan_index.bin")) {
+            Files.deleteIfExists(directory.resolve(journal));
+        }
+        Path resultFile = directory.resolve("result.properties");
+        Files.deleteIfExists(resultFile);
+
+        List<String> command = new ArrayList<>(List.of(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"),
+                EndToEndBenchmark.class.getName(), CHILD,
+                resultFile.toString(), String.valueOf(killAfterBytes),
+                "directory=" + source.toAbsolutePath(), "pathToSave=" + copy.toAbsolutePath(), "scanIndex="));
+        command.addAll(overrides);
+        Process process = new ProcessBuilder(command)
+                .directory(directory.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(directory.resolve("run.log").toFile())
+                .start();
+        if (!process.waitFor(RUN_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+            process.destroyForcibly();
+            throw new IOException("Run in " + directory + " did not end in " + RUN_TIMEOUT_MINUTES + " minutes");
+        }
+        if (!Files.exists(resultFile)) {
+            throw new IOException("Run in " + directory + " failed, see " + directory.resolve("run.log"));
+        }
+        Properties result = new Properties();
+        try (InputStream in = Files.newInputStream(resultFile)) {
+            result.load(in);
+        }
+        return result;
+    }
+
+    private static void child(String[] args) throws Exception {
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+        Path resultFile = Path.of(args[1]);
+        long killAfterBytes = Long.parseLong(args[2]);
+        PropertiesManager props = PropertiesManager.getInstance();
+        for (int i = 3; i < args.length; i++) {
+            int separator = args[i].indexOf('=');
+            props.setProperty(args[i].substring(0, separator), args[i].substring(separator + 1));
+        }
+        int serverPort = freePort();
+        props.setProperty("port", String.valueOf(serverPort));
+
+        Server server = new Server();
+        Thread serverThread = new Thread(server::start, "server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        if (!server.awaitListening(1, TimeUnit.MINUTES)) {
+            throw new IOException("Server did not start");
+        }
+        ConnectionKiller killer = null;
+        if (killAfterBytes >= 0) {
+            killer = new ConnectionKiller(serverPort, killAfterBytes);
+            killer.start();
+            // the server bound its port already, from now on the port only tells the client where to connect
+            props.setProperty("port", String.valueOf(killer.getPort()));
+        }
+
+        Client client = new Client(ClientConfig.fromProperties());
+
+        com.sun.management.OperatingSystemMXBean os =
+                (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        long cpuStart = os.getProcessCpuTime();
+        long allocatedStart = allocatedBytes();
+        long start = System.nanoTime();
+        client.run();
+        long wall = System.nanoTime() - start;
+        long cpu = os.getProcessCpuTime() - cpuStart;
+        long allocatedEnd = allocatedBytes();
+        TransferSnapshot last = client.completion().isCompletedExceptionally() ? null : client.completion().getNow(null);
+
+        Properties result = new Properties();
+        result.setProperty("finished", String.valueOf(last != null));
+        result.setProperty("wallSeconds", String.valueOf(wall / 1e9));
+        result.setProperty("bytes", String.valueOf(last == null ? 0 : last.bytes()));
+        result.setProperty("files", String.valueOf(last == null ? 0 : last.files()));
+        result.setProperty("cpuSeconds", String.valueOf(cpu / 1e9));
+        result.setProperty("allocatedBytes", String.valueOf(allocatedStart < 0 ? -1 : allocatedEnd - allocatedStart));
+        result.setProperty("processors", String.valueOf(os.getAvailableProcessors()));
+        result.setProperty("reconnects", String.valueOf(Metrics.getInstance().counter("client_reconnects").get()));
+        // summed over the sockets, the socket finishing last adds nothing
+        result.setProperty("tailIdleSeconds", String.valueOf(Metrics.getInstance().counter("client_tail_idle_nanoseconds").get() / 1e9));
+        result.setProperty("killed", String.valueOf(killer != null && killer.isKilled()));
+        try (OutputStream out = Files.newOutputStream(resultFile)) {
+            result.store(out, null);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * @return bytes allocated by all threads of the JVM so far, including the threads that already ended; -1 if unknown
+     */
+    private static long allocatedBytes() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads
+                && threads.isThreadAllocatedMemorySupported()) {
+            threads.setThreadAllocatedMemoryEnabled(true);
+            return threads.getTotalThreadAllocatedBytes();
+        }
+        return -1;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package sk.upjs.kopr.benchmark;
+
+import sk.upjs.kopr.copy.FileInfo;
+import sk.upjs.kopr.copy.protocol.FrameReader;
+import sk.upjs.kopr.copy.protocol.FrameWriter;
+import sk.upjs.kopr.copy.protocol.MessageType;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the cost of one data socket request: the old {@code writeInt} + {@code writeObject(FileInfo)}
+ * over object streams against the binary REQUEST frame. Every round encodes a batch of requests into
+ * memory and decodes them again, as the client and server do on a long-lived connection.
+ * <p>
+ * Run with {@code java -cp target/classes sk.upjs.kopr.benchmark.ProtocolBenchmark [requests] [rounds]}.
+ */
+public class ProtocolBenchmark {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        FileInfo[] fileInfos = new FileInfo[requests];
+        for (int i = 0; i < requests; i++) {
+            String name = "C:\\Users\\khorev\\Desktop\\skola\\projects\\src\\main\\java\\File" + i + ".java";
+            fileInfos[i] = new FileInfo(name, 0L, 1000L + i);
+        }
+
+        for (int i = 0; i < rounds; i++) { // warm up both paths
+            objectStreams(fileInfos);
+            frames(fileInfos);
+        }
+        System.out.println("requests/round=" + requests + ", rounds=" + rounds);
+        report("object streams", rounds, requests, () -> objectStreams(fileInfos));
+        report("binary frames", rounds, requests, () -> frames(fileInfos));
+    }
+
+    private static void report(String name, int rounds, int requests, Round round) throws Exception {
+        long bytes = 0;
+        long allocated = THREADS.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            bytes = round.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        allocated = THREADS.getCurrentThreadAllocatedBytes() - allocated;
+
+        long total = (long) rounds * requests;
+        System.out.printf("%-15s %8.1f ns/request %8.1f wire bytes/request %8.1f allocated bytes/request%n",
+                name, (double) elapsed / total, (double) bytes / requests, (double) allocated / total);
+    }
+
+    private static long objectStreams(FileInfo[] fileInfos) throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(buffer);
+        for (int i = 0; i < fileInfos.length; i++) {
+            oos.writeInt(i);
+            oos.writeObject(fileInfos[i]);
+            oos.flush();
+        }
+        int size = buffer.size();
+
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(buffer.toByteArray()));
+        for (int i = 0; i < fileInfos.length; i++) {
+            if (ois.readInt() != i || !fileInfos[i].equals(ois.readObject())) {
+                throw new IllegalStateException("Corrupted request " + i);
+            }
+        }
+        return size;
+    }
+
+    private static long frames(FileInfo[] fileInfos) throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        FrameWriter out = new FrameWriter(buffer);
+        for (int i = 0; i < fileInfos.length; i++) {
+            out.writeRequest(i, fileInfos[i]);
+            out.flush();
+        }
+        int size = buffer.size();
+
+        FrameReader in = new FrameReader(new ByteArrayInputStream(buffer.toByteArray()));
+        for (int i = 0; i < fileInfos.length; i++) {
+            if (in.readType() != MessageType.REQUEST || in.readVarInt() != i || !fileInfos[i].equals(in.readFileInfo())) {
+                throw new IllegalStateException("Corrupted request " + i);
+            }
+        }
+        return size;
+    }
+
+    private interface Round {
+        long run() throws Exception;
+    }
+}
@@ -0,0 +1,112 @@
+package sk.upjs.kopr.benchmark;
+
+import sk.upjs.kopr.tools.ScanIndex;
+import sk.upjs.kopr.tools.Searcher;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the former {@code FileSearcherTask}, one blocking {@code Callable} per directory on a fixed pool,
+ * with the ForkJoin walker of {@link Searcher}, without and with a {@link ScanIndex}, on two synthetic trees: a wide one with many sibling
+ * directories and a deep one, a single chain of nested directories.
+ * <p>
+ * Run with {@code java -cp target/classes sk.upjs.kopr.benchmark.SearcherBenchmark [width] [depth] [files/dir] [rounds]}.
+ * The old walker blocks one pool thread per directory level, on the deep tree it is given up after a timeout.
+ */
+public class SearcherBenchmark {
+
+    private static final int THREAD_NUMBER = Runtime.getRuntime().availableProcessors();
+    private static final long TIMEOUT_SECONDS = 10;
+
+    public static void main(String[] args) throws Exception {
+        int width = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int depth = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int filesPerDirectory = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        Path root = Files.createTempDirectory("searcher-benchmark");
+        try {
+            Path wide = DatasetGenerator.createWideTree(root.resolve("wide"), width, filesPerDirectory);
+            Path deep = DatasetGenerator.createDeepTree(root.resolve("deep"), depth, filesPerDirectory);
+            System.out.println("threads=" + THREAD_NUMBER + ", width=" + width + ", depth=" + depth
+                    + ", files/dir=" + filesPerDirectory + ", rounds=" + rounds);
+
+            for (Path tree : List.of(wide, deep)) {
+                report(tree.getFileName() + " fixed pool", rounds, () -> fixedPool(tree.toFile()));
+                report(tree.getFileName() + " fork/join", rounds, () -> Searcher.search(tree.toFile()).size());
+                ScanIndex index = ScanIndex.load(root.resolve("index.bin"), tree);
+                report(tree.getFileName() + " indexed", rounds, () -> {
+                    AtomicInteger found = new AtomicInteger();
+                    Searcher.search(tree.toFile(), index, (file, size, lastModified) -> found.incrementAndGet());
+                    return found.get();
+                });
+            }
+        } finally {
+            DatasetGenerator.delete(root);
+        }
+    }
+
+    private static void report(String name, int rounds, Round round) throws Exception {
+        if (round.run() < 0) { // warm up
+            System.out.printf("%-22s did not finish within %d s%n", name, TIMEOUT_SECONDS);
+            return;
+        }
+        int found = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            found = round.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%-22s %8.2f ms/search %8d files%n", name, elapsed / 1e6 / rounds, found);
+    }
+
+    /**
+     * The walker as it was before, kept here for comparison.
+     * @return the number of found files or -1 when the pool did not finish in time
+     */
+    private static int fixedPool(File directory) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_NUMBER);
+        try {
+            return executor.submit(new LegacySearcherTask(directory, executor)).get(TIMEOUT_SECONDS, TimeUnit.SECONDS).size();
+        } catch (TimeoutException e) {
+            return -1;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private record LegacySearcherTask(File currentDir, ExecutorService executor) implements Callable<List<File>> {
+
+        @Override
+        public List<File> call() throws Exception {
+            File[] files = currentDir.listFiles();
+            if (files == null) {
+                return new ArrayList<>();
+            }
+            List<File> filesToReturn = new ArrayList<>();
+            List<Future<List<File>>> futures = new ArrayList<>();
+            for (File currentFile : files) {
+                if (currentFile.isFile()) {
+                    filesToReturn.add(currentFile);
+                }
+                if (currentFile.isDirectory()) {
+                    futures.add(executor.submit(new LegacySearcherTask(currentFile, executor)));
+                }
+            }
+            for (Future<List<File>> future : futures) {
+                filesToReturn.addAll(future.get());
+            }
+            return filesToReturn;
+        }
+    }
+
+    private interface Round {
+        int run() throws Exception;
+    }
+}
@@ -1,5 +1,6 @@
 package sk.upjs.kopr.controllers;
 
+import javafx.application.Platform;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.SimpleBooleanProperty;
 import javafx.fxml.FXML;
@@ -11,6 +12,9 @@ import javafx.scene.input.MouseEvent;
 import javafx.stage.Stage;
 import lombok.extern.slf4j.Slf4j;
 import sk.upjs.kopr.copy.client.Client;
+import sk.upjs.kopr.copy.client.ClientConfig;
+import sk.upjs.kopr.copy.client.TransferSnapshot;
+import sk.upjs.kopr.metrics.Metrics;
 import sk.upjs.kopr.tools.PropertiesManager;
 import sk.upjs.kopr.tools.ThreadSafeLong;
 
@@ -18,6 +22,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
 
 @Slf4j
 public class MainController {
@@ -30,6 +35,9 @@ public class MainController {
     private final ThreadSafeLong allFileCount = new ThreadSafeLong();
     private final ThreadSafeLong allFileSize = new ThreadSafeLong();
 
+    private final ThreadSafeLong throughput = new ThreadSafeLong();
+    private final ThreadSafeLong eta = new ThreadSafeLong();
+
     private final BooleanProperty finishProperty = new SimpleBooleanProperty();
 
     private ExecutorService executor;
@@ -58,6 +66,8 @@ public class MainController {
     private Button startCopyButton;
     @FXML
     private TextField toSaveTextField;
+    @FXML
+    private Label throughputLabel;
 
 
 
@@ -79,9 +89,11 @@ public class MainController {
         props.setPathToSave(toSaveTextField.getText());
 
         executor = Executors.newFixedThreadPool(1);
+        Metrics.getInstance().startEndpoint(props.getMetricsPort());
 
-        Runnable clientTask = new Client(fileSizeProgressProperty, fileCountProgressProperty, allFileCount, allFileSize, finishProperty);
-        executor.submit(clientTask);
+        Client client = new Client(ClientConfig.fromProperties());
+        client.progress().subscribe(new ProgressSubscriber());
+        executor.submit(client);
         executor.shutdown();
         createFile();
 
@@ -100,6 +112,12 @@ public class MainController {
             bytesSentProgressBar.setProgress((double) newValue / allFileSize.get());
         });
 
+        // every snapshot sets the throughput before the ETA
+        eta.addListener((oldValue, newValue) -> {
+            String left = newValue < 0 ? "--:--" : String.format("%d:%02d", newValue / 60, newValue % 60);
+            throughputLabel.setText(String.format("%.1f MB/s, ETA %s", throughput.get() / (1024.0 * 1024), left));
+        });
+
         allFileSize.addListener((oldValue, newValue) -> filesizePercentLabel.setText(0 / (1024 * 1024) + "/" + newValue / (1024 * 1024) + " MB"));
         allFileCount.addListener((oldValue, newValue) -> filesPercentLabel.setText(0 + "%"));
 
@@ -111,6 +129,56 @@ public class MainController {
         });
     }
 
+    /**
+     * Shows the snapshots of the client in the window. The next snapshot is requested only after the JavaFX thread
+     * showed the last one, the client drops the snapshots in between.
+     */
+    private class ProgressSubscriber implements Flow.Subscriber<TransferSnapshot> {
+
+        private Flow.Subscription subscription;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(TransferSnapshot snapshot) {
+            Platform.runLater(() -> {
+                show(snapshot);
+                subscription.request(1);
+            });
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            Platform.runLater(() -> {
+                log.error("Copying failed: " + throwable);
+                startCopyButton.setDisable(false);
+                startCopyButton.setText("Pokračovať v kopírovaní");
+            });
+        }
+
+        @Override
+        public void onComplete() {
+            Platform.runLater(() -> finishProperty.set(true));
+        }
+    }
+
+    private void show(TransferSnapshot snapshot) {
+        if (allFileCount.get() != snapshot.totalFiles()) {
+            allFileCount.set(snapshot.totalFiles());
+        }
+        if (allFileSize.get() != snapshot.totalBytes()) {
+            allFileSize.set(snapshot.totalBytes());
+        }
+        fileSizeProgressProperty.set(snapshot.bytes());
+        fileCountProgressProperty.set(snapshot.files());
+        throughput.set(snapshot.bytesPerSecond());
+        eta.set(snapshot.etaSeconds());
+    }
+
     public static boolean checkFileExistence() {
         File file = new File("wasFinished.txt");
         return file.exists();
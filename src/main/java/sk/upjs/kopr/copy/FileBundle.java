@@ -0,0 +1,55 @@
+package sk.upjs.kopr.copy;
+
+import java.io.Serial;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A run of small files that is requested and sent as one transfer unit. The server answers a bundle
+ * with one frame: the number of files, the length of every file and then all payloads back to back.
+ */
+public class FileBundle extends FileInfo {
+
+	@Serial
+	private static final long serialVersionUID = 4127583466021908731L;
+
+	@SuppressWarnings("serial") // List.copyOf returns a serializable list
+	public final List<FileInfo> files;
+
+	public FileBundle(List<FileInfo> files) {
+		super(files.get(0).fileName, 0L, totalBytes(files));
+		this.files = List.copyOf(files);
+	}
+
+	private static long totalBytes(List<FileInfo> files) {
+		return files.stream().mapToLong(f -> f.size - f.offset).sum();
+	}
+
+	@Override
+	public List<FileInfo> parts() {
+		return Collections.unmodifiableList(files);
+	}
+
+	@Override
+	public String toString() {
+		return "bundle of " + files.size() + " files from " + fileName;
+	}
+
+	@Override
+	public int hashCode() {
+		return files.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		FileBundle other = (FileBundle) obj;
+		return Objects.equals(files, other.files);
+	}
+}
@@ -2,6 +2,7 @@ package sk.upjs.kopr.copy;
 
 import java.io.Serial;
 import java.io.Serializable;
+import java.util.List;
 import java.util.Objects;
 
 public class FileInfo implements Serializable {
@@ -11,17 +12,49 @@ public class FileInfo implements Serializable {
 
 	public final String fileName;
 	public final long offset;
+	/** End of the range to copy (exclusive), equal to {@link #fileLength} unless the file was split into chunks. */
 	public final long size;
+	public final long fileLength;
+	/** Modification time of the source file in milliseconds, 0 if unknown. */
+	public final long lastModified;
 
 	public FileInfo(String fileName, long offset,long size) {
+		this(fileName, offset, size, size);
+	}
+
+	public FileInfo(String fileName, long offset, long size, long fileLength) {
+		this(fileName, offset, size, fileLength, 0L);
+	}
+
+	public FileInfo(String fileName, long offset, long size, long fileLength, long lastModified) {
 		this.fileName = fileName;
 		this.offset = offset;
 		this.size = size;
+		this.fileLength = fileLength;
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * @return the rest of this range starting at the given offset
+	 */
+	public FileInfo from(long offset) {
+		return new FileInfo(fileName, offset, size, fileLength, lastModified);
+	}
+
+	public boolean isChunk() {
+		return size != fileLength;
+	}
+
+	/**
+	 * @return the file ranges this work item consists of
+	 */
+	public List<FileInfo> parts() {
+		return List.of(this);
 	}
 
 	@Override
 	public String toString() {
-		return fileName + ": "+offset ;
+		return isChunk() ? fileName + ": " + offset + "-" + size : fileName + ": " + offset;
 	}
 
 	@Override
@@ -0,0 +1,534 @@
+package sk.upjs.kopr.copy;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only record of a transfer: the work items that were planned and the byte intervals of files that
+ * were transferred since. Records are collected in memory and written in one batch every {@code syncMillis},
+ * a crash loses at most the last batch. Every record carries its length and a CRC32C, replay stops at a torn
+ * or damaged tail.
+ * <p>
+ * Opening a journal replays it: the planned items minus the recorded intervals are the work that is left.
+ * Items count only if the journal also records that the list of planned items was complete, a list that
+ * was still arriving when the process died would leave files out. The journal is then compacted, rewritten
+ * as just the remaining items. A transfer in progress compacts it again whenever the records written since
+ * the last compaction outgrow the compacted journal, so a long session keeps it in proportion to the work left.
+ * <p>
+ * The send and receive tasks may run on virtual threads, so the journal holds {@link ReentrantLock}s instead
+ * of monitors: a task recording a range while the flusher writes the file parks instead of pinning its carrier.
+ */
+@Slf4j
+public class ProgressJournal implements Closeable {
+	private static final int MAGIC = 0x4B4A524E;
+	private static final int VERSION = 1;
+	private static final byte PLANNED = 1;
+	private static final byte COMPLETED = 2;
+	private static final byte LISTED = 3;
+	private static final byte KIND_RANGE = 0;
+	private static final byte KIND_BUNDLE = 1;
+	private static final int MAX_RECORD_LENGTH = 1 << 24;
+	/** Work items per PLANNED record written by a compaction. */
+	private static final int COMPACTION_BATCH = 1024;
+	/** Bytes a journal may grow by before a transfer in progress compacts it, unless the compacted journal is larger. */
+	private static final long COMPACTION_MIN_BYTES = 1 << 22;
+
+	private final Path file;
+	private final long syncMillis;
+	private final boolean fsync;
+	private final Consumer<Set<String>> beforeSync;
+	private final List<FileInfo> pending;
+
+	private final ReentrantLock fileLock = new ReentrantLock();
+	private final ReentrantLock batchLock = new ReentrantLock();
+	private FileChannel channel;
+	private volatile boolean closed;
+	private long compactedBytes;
+	private long appendedBytes;
+
+	private ByteArrayOutputStream batch = new ByteArrayOutputStream();
+	private Set<String> batchFiles = new HashSet<>();
+
+	private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "progress-journal");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private ProgressJournal(Path file, long syncMillis, boolean fsync, Consumer<Set<String>> beforeSync, List<FileInfo> pending) {
+		this.file = file;
+		this.syncMillis = Math.max(1, syncMillis);
+		this.fsync = fsync;
+		this.beforeSync = beforeSync;
+		this.pending = pending;
+	}
+
+	/**
+	 * Replays and compacts the journal in the given file, a missing one is created empty.
+	 *
+	 * @param syncMillis interval of the batched writes
+	 * @param fsync      whether every batch is forced to the disk, otherwise only a crash of the process is survived
+	 * @param beforeSync makes the data of the files named in a batch durable before the batch is forced, may be {@code null}
+	 */
+	public static ProgressJournal open(Path file, long syncMillis, boolean fsync, Consumer<Set<String>> beforeSync) {
+		ProgressJournal journal = new ProgressJournal(file, syncMillis, fsync, beforeSync, replay(file));
+		journal.reset(journal.pending);
+		journal.flusher.scheduleWithFixedDelay(journal::syncQuietly, journal.syncMillis, journal.syncMillis, TimeUnit.MILLISECONDS);
+		return journal;
+	}
+
+	/**
+	 * @return the work left by the replayed session
+	 */
+	public BlockingQueue<FileInfo> pending() {
+		return new LinkedBlockingQueue<>(pending);
+	}
+
+	/**
+	 * Records work items that are to be transferred.
+	 */
+	public void planned(Collection<FileInfo> items) {
+		if (items.isEmpty()) {
+			return;
+		}
+		append(PLANNED, out -> writeItems(out, items), null);
+	}
+
+	/**
+	 * Records that all items of the transfer were planned. The marker is written at once.
+	 */
+	public void listed() throws IOException {
+		append(LISTED, out -> {
+		}, null);
+		sync();
+	}
+
+	/**
+	 * Starts an empty journal for a new transfer, its items follow with {@link #planned} and {@link #listed}.
+	 */
+	public void clear() {
+		rewrite(List.of(), false);
+	}
+
+	/**
+	 * Records that bytes {@code from..to} of the file were transferred. An empty interval marks an empty file.
+	 */
+	public void completed(String fileName, long from, long to) {
+		append(COMPLETED, out -> {
+			out.writeUTF(fileName);
+			out.writeLong(from);
+			out.writeLong(to);
+		}, fileName);
+	}
+
+	/**
+	 * @return the time after which a transfer in progress should record what it has completed
+	 */
+	public long getSyncMillis() {
+		return syncMillis;
+	}
+
+	/**
+	 * Replaces the journal with one that holds just the given items as the complete list. The file is replaced
+	 * at once, a crash leaves the previous journal.
+	 */
+	public void reset(Collection<FileInfo> items) {
+		rewrite(items, true);
+	}
+
+	private void rewrite(Collection<FileInfo> items, boolean listed) {
+		fileLock.lock();
+		try {
+			batchLock.lock();
+			try {
+				batch.reset();
+				batchFiles = new HashSet<>();
+			} finally {
+				batchLock.unlock();
+			}
+			if (closed) {
+				return;
+			}
+			write(items, listed);
+		} finally {
+			fileLock.unlock();
+		}
+	}
+
+	/**
+	 * Rewrites the journal as the work it leaves, the records collected meanwhile follow in the new file.
+	 * A journal whose list is still arriving is left as it is, its items cannot be subtracted yet.
+	 */
+	private void compact() {
+		Replay replay = read(file);
+		if (!replay.listed() || replay.torn()) {
+			// try again once the journal doubles
+			compactedBytes += appendedBytes;
+			appendedBytes = 0;
+			return;
+		}
+		long size = compactedBytes + appendedBytes;
+		List<FileInfo> pending = subtract(replay.planned(), replay.completed());
+		write(pending, true);
+		log.info("Progress journal compacted from " + size + " to " + compactedBytes + " bytes, "
+				+ pending.size() + " work items left");
+	}
+
+	/**
+	 * Replaces the file at once, a crash leaves the previous journal. Called with the file lock held.
+	 */
+	private void write(Collection<FileInfo> items, boolean listed) {
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try {
+			closeChannel();
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				List<FileInfo> chunk = new ArrayList<>(COMPACTION_BATCH);
+				for (FileInfo item : items) {
+					chunk.add(item);
+					if (chunk.size() == COMPACTION_BATCH) {
+						writeRecord(out, PLANNED, record -> writeItems(record, chunk));
+						chunk.clear();
+					}
+				}
+				if (!chunk.isEmpty()) {
+					writeRecord(out, PLANNED, record -> writeItems(record, chunk));
+				}
+				if (listed) {
+					writeRecord(out, LISTED, record -> {
+					});
+				}
+			}
+			if (fsync) {
+				try (FileChannel tempChannel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+					tempChannel.force(true);
+				}
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			compactedBytes = channel.size();
+			appendedBytes = 0;
+		} catch (IOException e) {
+			log.error("Cannot write progress journal " + file + ": " + e);
+		}
+	}
+
+	/**
+	 * Writes the collected records. Data of the files they name is made durable first, so the journal
+	 * never points past bytes that a power loss could take away.
+	 */
+	public void sync() throws IOException {
+		fileLock.lock();
+		try {
+			byte[] records;
+			Set<String> files;
+			batchLock.lock();
+			try {
+				records = batch.toByteArray();
+				files = batchFiles;
+				batch.reset();
+				batchFiles = new HashSet<>();
+			} finally {
+				batchLock.unlock();
+			}
+			if (closed || channel == null || records.length == 0) {
+				return;
+			}
+			if (fsync && beforeSync != null && !files.isEmpty()) {
+				beforeSync.accept(files);
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(records);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			if (fsync) {
+				channel.force(false);
+			}
+			appendedBytes += records.length;
+			if (appendedBytes > Math.max(COMPACTION_MIN_BYTES, compactedBytes)) {
+				compact();
+			}
+		} finally {
+			fileLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the journal of a finished transfer, records that arrive later are dropped.
+	 */
+	public void delete() {
+		fileLock.lock();
+		try {
+			stop();
+			try {
+				Files.deleteIfExists(file);
+			} catch (IOException e) {
+				log.error("Cannot delete progress journal " + file + ": " + e);
+			}
+		} finally {
+			fileLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes what was collected and closes the journal, records that arrive later are dropped.
+	 */
+	@Override
+	public void close() {
+		fileLock.lock();
+		try {
+			syncQuietly();
+			stop();
+		} finally {
+			fileLock.unlock();
+		}
+	}
+
+	private void stop() {
+		closed = true;
+		flusher.shutdownNow();
+		try {
+			closeChannel();
+		} catch (IOException e) {
+			log.error("Cannot close progress journal " + file + ": " + e);
+		}
+	}
+
+	private void syncQuietly() {
+		try {
+			sync();
+		} catch (IOException e) {
+			log.error("Cannot write progress journal " + file + ": " + e);
+		}
+	}
+
+	private void closeChannel() throws IOException {
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+	}
+
+	private interface RecordBody {
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	private void append(byte type, RecordBody body, String fileName) {
+		batchLock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+			try {
+				writeRecord(new DataOutputStream(batch), type, body);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e); // a memory stream does not fail
+			}
+			if (fileName != null) {
+				batchFiles.add(fileName);
+			}
+		} finally {
+			batchLock.unlock();
+		}
+	}
+
+	private static void writeRecord(DataOutputStream out, byte type, RecordBody body) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		body.write(new DataOutputStream(bytes));
+		byte[] payload = bytes.toByteArray();
+		CRC32C crc = new CRC32C();
+		crc.update(payload);
+		out.writeByte(type);
+		out.writeInt(payload.length);
+		out.write(payload);
+		out.writeInt((int) crc.getValue());
+	}
+
+	private static void writeItems(DataOutputStream out, Collection<FileInfo> items) throws IOException {
+		out.writeInt(items.size());
+		for (FileInfo item : items) {
+			out.writeByte(item instanceof FileBundle ? KIND_BUNDLE : KIND_RANGE);
+			out.writeInt(item.parts().size());
+			for (FileInfo part : item.parts()) {
+				out.writeUTF(part.fileName);
+				out.writeLong(part.offset);
+				out.writeLong(part.size);
+				out.writeLong(part.fileLength);
+				out.writeLong(part.lastModified);
+			}
+		}
+	}
+
+	private static List<FileInfo> replay(Path file) {
+		Replay replay = read(file);
+		if (!replay.listed()) {
+			if (!replay.planned().isEmpty()) {
+				log.warn("Progress journal " + file + " holds an incomplete file list, the transfer starts over");
+			}
+			return new ArrayList<>();
+		}
+		List<FileInfo> pending = subtract(replay.planned(), replay.completed());
+		log.info("Progress journal replayed: " + replay.records() + " records, " + pending.size() + " work items left");
+		return pending;
+	}
+
+	/**
+	 * @param torn whether reading stopped at a damaged record instead of the end of the file
+	 */
+	private record Replay(List<FileInfo> planned, Map<String, List<long[]>> completed, boolean listed, int records,
+			boolean torn) {
+	}
+
+	private static Replay read(Path file) {
+		List<FileInfo> planned = new ArrayList<>();
+		Map<String, List<long[]>> completed = new HashMap<>();
+		boolean listed = false;
+		boolean torn = false;
+		int records = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				log.warn("Progress journal " + file + " has an unknown format, it is ignored");
+				return new Replay(planned, completed, false, 0, true);
+			}
+			CRC32C crc = new CRC32C();
+			while (true) {
+				int type = in.read();
+				if (type < 0) {
+					break;
+				}
+				int length = in.readInt();
+				if ((type != PLANNED && type != COMPLETED && type != LISTED) || length < 0 || length > MAX_RECORD_LENGTH) {
+					throw new StreamCorruptedException("Damaged record");
+				}
+				byte[] payload = in.readNBytes(length);
+				if (payload.length < length) {
+					throw new EOFException();
+				}
+				crc.reset();
+				crc.update(payload);
+				if (in.readInt() != (int) crc.getValue()) {
+					throw new StreamCorruptedException("Checksum mismatch");
+				}
+				DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+				if (type == PLANNED) {
+					readItems(record, planned);
+				} else if (type == LISTED) {
+					listed = true;
+				} else {
+					completed.computeIfAbsent(record.readUTF(), name -> new ArrayList<>())
+							.add(new long[]{record.readLong(), record.readLong()});
+				}
+				records++;
+			}
+		} catch (NoSuchFileException | FileNotFoundException e) {
+			return new Replay(planned, completed, false, 0, false);
+		} catch (EOFException | StreamCorruptedException e) {
+			log.warn("Progress journal " + file + " ends with a torn record, replayed " + records + " records");
+			torn = true;
+		} catch (IOException e) {
+			log.error("Cannot read progress journal " + file + ": " + e);
+			torn = true;
+		}
+		return new Replay(planned, completed, listed, records, torn);
+	}
+
+	private static void readItems(DataInputStream in, List<FileInfo> items) throws IOException {
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			byte kind = in.readByte();
+			int parts = in.readInt();
+			List<FileInfo> ranges = new ArrayList<>(parts);
+			for (int j = 0; j < parts; j++) {
+				ranges.add(new FileInfo(in.readUTF(), in.readLong(), in.readLong(), in.readLong(), in.readLong()));
+			}
+			items.add(kind == KIND_BUNDLE && ranges.size() > 1 ? new FileBundle(ranges) : ranges.get(0));
+		}
+	}
+
+	/**
+	 * @return the planned items without the completed intervals, in the planned order. A bundle keeps its
+	 * untouched files, partly completed ranges leave a range for every gap.
+	 */
+	private static List<FileInfo> subtract(List<FileInfo> planned, Map<String, List<long[]>> completed) {
+		for (List<long[]> intervals : completed.values()) {
+			intervals.sort(Comparator.comparingLong(interval -> interval[0]));
+		}
+		List<FileInfo> pending = new ArrayList<>();
+		for (FileInfo item : planned) {
+			List<FileInfo> whole = new ArrayList<>();
+			List<FileInfo> pieces = new ArrayList<>();
+			for (FileInfo part : item.parts()) {
+				List<FileInfo> missing = missing(part, completed.get(part.fileName));
+				if (missing.size() == 1 && missing.get(0) == part) {
+					whole.add(part);
+				} else {
+					pieces.addAll(missing);
+				}
+			}
+			if (whole.size() == item.parts().size()) {
+				pending.add(item);
+				continue;
+			}
+			if (whole.size() == 1) {
+				pending.add(whole.get(0));
+			} else if (!whole.isEmpty()) {
+				pending.add(new FileBundle(whole));
+			}
+			pending.addAll(pieces);
+		}
+		return pending;
+	}
+
+	private static List<FileInfo> missing(FileInfo part, List<long[]> intervals) {
+		if (intervals == null) {
+			return List.of(part);
+		}
+		if (part.offset == part.size) {
+			for (long[] interval : intervals) {
+				if (interval[0] <= part.offset && part.offset <= interval[1]) {
+					return List.of();
+				}
+			}
+			return List.of(part);
+		}
+		List<FileInfo> missing = new ArrayList<>();
+		long position = part.offset;
+		for (long[] interval : intervals) {
+			if (interval[1] <= position || interval[0] >= part.size || interval[0] == interval[1]) {
+				continue;
+			}
+			if (interval[0] > position) {
+				missing.add(new FileInfo(part.fileName, position, interval[0], part.fileLength, part.lastModified));
+			}
+			position = Math.max(position, interval[1]);
+			if (position >= part.size) {
+				break;
+			}
+		}
+		if (position == part.offset) {
+			return List.of(part);
+		}
+		if (position < part.size) {
+			missing.add(new FileInfo(part.fileName, position, part.size, part.fileLength, part.lastModified));
+		}
+		return missing;
+	}
+}
@@ -0,0 +1,30 @@
+package sk.upjs.kopr.copy;
+
+public enum TransferMode {
+
+	/**
+	 * File data is read into a heap buffer and written into DATA frames.
+	 */
+	STREAM,
+
+	/**
+	 * File ranges are handed to the socket channel with {@code FileChannel.transferTo},
+	 * so the kernel can send them without copying through user space.
+	 */
+	ZERO_COPY;
+
+	public static TransferMode fromString(String value) {
+		if (value == null || value.isBlank()) {
+			return STREAM;
+		}
+		return switch (value.trim().toLowerCase()) {
+			case "zerocopy", "zero_copy", "zero-copy" -> ZERO_COPY;
+			default -> STREAM;
+		};
+	}
+
+	@Override
+	public String toString() {
+		return this == ZERO_COPY ? "zerocopy" : "stream";
+	}
+}
@@ -1,108 +1,179 @@
 package sk.upjs.kopr.copy.client;
 
-import javafx.beans.property.BooleanProperty;
 import lombok.extern.slf4j.Slf4j;
 import sk.upjs.kopr.copy.FileInfo;
-import sk.upjs.kopr.tools.FilePathChanger;
-import sk.upjs.kopr.tools.PropertiesManager;
-import sk.upjs.kopr.tools.ThreadSafeLong;
+import sk.upjs.kopr.copy.ProgressJournal;
+import sk.upjs.kopr.copy.protocol.FrameReader;
+import sk.upjs.kopr.copy.protocol.FrameWriter;
+import sk.upjs.kopr.copy.protocol.ManifestEntry;
+import sk.upjs.kopr.copy.protocol.MessageType;
+import sk.upjs.kopr.copy.protocol.Totals;
+import sk.upjs.kopr.metrics.Counter;
+import sk.upjs.kopr.metrics.Metrics;
+import sk.upjs.kopr.tools.Searcher;
+import sk.upjs.kopr.tools.TaskExecutors;
 
 import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.*;
 
-import static com.sun.javafx.application.PlatformImpl.runLater;
-
+/**
+ * Copies the directory of the server into {@link ClientConfig#pathToSave()}. The client does not depend on any UI,
+ * the window, the command line client and embedding applications all follow the copy through {@link #progress()}.
+ * A client runs a single copy; it survives lost connections by resuming from its journal.
+ */
 @Slf4j
 public class Client implements Runnable {
 
-    private final static PropertiesManager props = PropertiesManager.getInstance();
-    private int numberOfSockets;
+    private static final int MANIFEST_BATCH_SIZE = 1024;
+    private final ClientConfig config;
+    private final int numberOfSockets;
+    private long session;
     private BlockingQueue<FileInfo> files;
+    private ProgressJournal journal;
+    private FileCompletionTracker tracker;
+    private DeltaFiles deltaFiles;
+    private CountDownLatch scanCompleted;
+    private volatile boolean fileListFailed;
+    private volatile int dataSockets;
 
     public int totalFiles;
     public long totalLength;
 
-    private final ThreadSafeLong fileSizeProgressProperty;
-    private final ThreadSafeLong fileCountProgressProperty;
+    private final TransferProgress progress;
+    private final Counter resumes = Metrics.getInstance().counter("client_resumes");
+    private final Counter reconnects = Metrics.getInstance().counter("client_reconnects");
+    private final Counter tailIdle = Metrics.getInstance().counter("client_tail_idle_nanoseconds");
+
+    public Client(ClientConfig config) {
+        this.config = config;
+        this.numberOfSockets = config.numberOfSockets();
+        this.progress = new TransferProgress(config.progressIntervalMillis());
+        Metrics.getInstance().gauge("client_queue_depth", () -> files == null ? 0 : files.size());
+        Metrics.getInstance().gauge("client_open_files", () -> MyFileWriter.getHandleCache().getOpenHandles());
+        Metrics.getInstance().gauge("client_data_sockets", () -> dataSockets);
+    }
 
-    private final ThreadSafeLong allFileCountProperty;
-    private final ThreadSafeLong allFileSizeProperty;
-    private final BooleanProperty finishProperty;
+    /**
+     * @return snapshots of the progress, sampled every {@link ClientConfig#progressIntervalMillis()}; a subscriber
+     * that is behind misses snapshots instead of slowing the copy down. The publisher completes when the copy is
+     * finished and fails with the cause if it is not.
+     */
+    public Flow.Publisher<TransferSnapshot> progress() {
+        return progress.publisher();
+    }
 
-    public Client(ThreadSafeLong fileSizeProgress, ThreadSafeLong fileProgress, ThreadSafeLong totalFileCount, ThreadSafeLong totalFileSize, BooleanProperty finishProperty) {
-        this.fileSizeProgressProperty = fileSizeProgress;
-        this.fileCountProgressProperty = fileProgress;
-        this.allFileCountProperty = totalFileCount;
-        this.allFileSizeProperty = totalFileSize;
-        this.finishProperty = finishProperty;
+    /**
+     * @return completes with the last snapshot when the copy is finished
+     */
+    public CompletableFuture<TransferSnapshot> completion() {
+        return progress.completion();
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public void run() {
         log.info("Client started");
         try {
-            Socket managingSocket = getManagingSocket();
-            if (managingSocket == null) {
-                deleteProgress();
-                return;
-            }
-
-            ObjectOutputStream oos = new ObjectOutputStream(managingSocket.getOutputStream());
-            ObjectInputStream ois = new ObjectInputStream(managingSocket.getInputStream());
-
-            numberOfSockets = props.getNumberOfSockets();
-            oos.writeInt(numberOfSockets);
-            oos.flush();
+            copy();
+            progress.complete();
+            log.info("Copying finished");
+        } catch (InterruptedException e) {
+            log.error("Client was interrupted");
+            progress.fail(e);
+        } catch (IOException e) {
+            log.error("Copying failed: " + e.getMessage());
+            progress.fail(e);
+        } catch (Exception e) {
+            progress.fail(e);
+            throw new RuntimeException(e);
+        }
+    }
 
-            int allFilesCount = ois.readInt();
-            long allFileSize = ois.readLong();
+    private void copy() throws Exception {
+        Socket managingSocket = getManagingSocket();
+        if (managingSocket == null) {
+            deleteProgress();
+            return;
+        }
 
-            runLater(() -> allFileCountProperty.set(allFilesCount));
-            runLater(() -> allFileSizeProperty.set(allFileSize));
+        FrameWriter out = new FrameWriter(managingSocket.getOutputStream());
+        FrameReader in = new FrameReader(managingSocket.getInputStream());
 
-            files = loadProgress();
-            if (files.size() > 0) {
+        out.writeHello(numberOfSockets, config.transferMode(), config.zeroCopyChecksums(), config.compression(), config.compressionLevel(), config.directory());
+        out.flush();
+        session = in.readSession();
 
-                log.info("RESUME copying");
-                oos.writeUTF("RESUME");
-                oos.writeObject(files);
-                oos.flush();
+        Totals allFiles = in.readTotals();
+        int allFilesCount = allFiles.files();
+        long allFileSize = allFiles.bytes();
 
-                if (ois.readUTF().equals("DELETE CLIENT PROGRESS")) {
-                    new File("client_progress.obj").delete();
-                    log.info("Client progress was deleted");
-                }
-            } else {
-                log.info("START copying");
-                oos.writeUTF("START");
-                oos.flush();
+        progress.setTotals(allFilesCount, allFileSize);
 
-                totalFiles = ois.readInt();
-                totalLength = ois.readLong();
+        if (journal != null) {
+            journal.close();
+        }
+        journal = ProgressJournal.open(config.journal(), config.journalSyncMillis(), config.journalFsync(), this::forceCopies);
+        files = config.scheduling().newQueue(journal.pending(), config.schedulePriorities(), config.directory());
+        tracker = new FileCompletionTracker(files);
+        deltaFiles = new DeltaFiles(config);
+        scanCompleted = new CountDownLatch(1);
+        fileListFailed = false;
+        ExecutorService listExecutor = Executors.newSingleThreadExecutor();
+        if (files.size() > 0) {
+
+            log.info("RESUME copying");
+            resumes.increment();
+            progress.start(progress.getBytes(), progress.getFiles());
+            deltaFiles.select(files);
+            out.writeFileList(MessageType.RESUME, files);
+            out.flush();
+
+            // the journal goes on recording the resumed transfer
+            in.expect(MessageType.DELETE_CLIENT_PROGRESS);
+            log.info("Resume accepted by the server");
+
+            out.writeCommand(MessageType.DELETE_SERVER_PROGRESS);
+            out.flush();
+            scanCompleted.countDown();
+        } else {
+            log.info("START copying");
+            journal.clear();
+            if (config.syncMode()) {
+                sendManifest(out);
+            }
+            out.writeCommand(MessageType.START);
+            out.flush();
 
-                files = (BlockingQueue<FileInfo>) ois.readObject();
+            Totals remaining = in.readTotals();
+            totalFiles = remaining.files();
+            totalLength = remaining.bytes();
 
-                runLater(() -> fileCountProgressProperty.set(allFilesCount - totalFiles));
-                runLater(() -> fileSizeProgressProperty.set(allFileSize - totalLength));
+            progress.start(allFileSize - totalLength, allFilesCount - totalFiles);
 
-                createDirectoriesAndFile(files);
-            }
-            oos.writeUTF("DELETE SERVER PROGRESS");
-            oos.flush();
+            // the file list may still be growing on the server, the sockets start on what arrived so far
+            listExecutor.submit(() -> receiveFileList(out, in));
+        }
 
+        try {
             receiveFiles();
-            runLater(() -> finishProperty.set(true));
-        } catch (InterruptedException e) {
-            log.error("Client was interrupted");
-        } catch (IOException e) {
-            log.error("Connection reset");
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        } finally {
+            listExecutor.shutdown();
         }
     }
 
@@ -110,7 +181,7 @@ public class Client implements Runnable {
         Socket managingSocket = null;
         while (true) {
             try {
-                managingSocket = new Socket(props.getIP(), props.getPort());
+                managingSocket = new Socket(config.ip(), config.port());
                 return managingSocket;
             } catch (UnknownHostException e) {
                 e.printStackTrace();
@@ -129,9 +200,76 @@ public class Client implements Runnable {
         }
     }
 
+    /**
+     * Lists the files already in the copy, so the server can leave out those that did not change.
+     */
+    private void sendManifest(FrameWriter out) throws IOException {
+        File copyRoot = config.copyOf(config.directory());
+        if (!copyRoot.isDirectory()) {
+            return;
+        }
+        Queue<ManifestEntry> manifest = new ConcurrentLinkedQueue<>();
+        Searcher.search(copyRoot, (file, size, lastModified) -> {
+            String fileName = config.sourceOf(file.toString());
+            if (fileName != null) {
+                manifest.add(new ManifestEntry(fileName, size, lastModified));
+            }
+        });
+
+        List<ManifestEntry> batch = new ArrayList<>();
+        for (ManifestEntry entry : manifest) {
+            batch.add(entry);
+            if (batch.size() == MANIFEST_BATCH_SIZE) {
+                out.writeManifest(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            out.writeManifest(batch);
+        }
+        log.info("Sync: " + manifest.size() + " files already copied");
+    }
+
+    /**
+     * Reads FILE_LIST batches and total updates from the managing socket until the server reports
+     * that its search is complete.
+     */
+    private void receiveFileList(FrameWriter out, FrameReader in) {
+        try {
+            while (true) {
+                MessageType type = in.readType();
+                if (type == MessageType.FILE_LIST) {
+                    BlockingQueue<FileInfo> batch = in.readFileList();
+                    createDirectoriesAndFile(batch);
+                    journal.planned(batch);
+                    tracker.add(batch);
+                    deltaFiles.select(batch);
+                    files.addAll(batch);
+                } else if (type == MessageType.TOTALS || type == MessageType.SCAN_COMPLETE) {
+                    Totals allFiles = in.readTotalsBody();
+                    progress.setTotals(allFiles.files(), allFiles.bytes());
+                    if (type == MessageType.SCAN_COMPLETE) {
+                        journal.listed();
+                        break;
+                    }
+                } else {
+                    throw new ProtocolException("Unexpected " + type + " on managing socket");
+                }
+            }
+            log.info("File list received");
+            out.writeCommand(MessageType.DELETE_SERVER_PROGRESS);
+            out.flush();
+        } catch (IOException e) {
+            log.error("Error while receiving file list");
+            fileListFailed = true;
+        } finally {
+            scanCompleted.countDown();
+        }
+    }
+
     private void createDirectoriesAndFile(BlockingQueue<FileInfo> files) {
-        for (FileInfo fileInfo : files) {
-            File file = new File(FilePathChanger.modifyBasePath(fileInfo.fileName));
+        for (FileInfo fileInfo : files.stream().flatMap(f -> f.parts().stream()).toList()) {
+            File file = config.copyOf(fileInfo.fileName);
             System.out.println(file.getAbsolutePath());
             File parentDir = file.getParentFile();
             if (!parentDir.exists()) {
@@ -146,27 +284,63 @@ public class Client implements Runnable {
     }
 
     public void receiveFiles() throws Exception {
-        CountDownLatch latch = new CountDownLatch(files.size());
-        ExecutorService executor = Executors.newFixedThreadPool(numberOfSockets);
+        boolean tuning = config.autoTuneMillis() > 0;
+        ExecutorService executor = TaskExecutors.newTaskExecutor("receive", config.virtualThreads());
+        CompletionService<Integer> completion = new ExecutorCompletionService<>(executor);
 
-        List<Future<Integer>> futures = new ArrayList<>();
+        Map<Future<Integer>, FileReceiveTask> running = new HashMap<>();
+        Deque<FileReceiveTask> active = new ArrayDeque<>();
         List<Socket> sockets = new ArrayList<>();
+        List<FileReceiveTask> finished = new ArrayList<>();
         for (int i = 0; i < numberOfSockets; i++) {
-            Socket socket = new Socket(props.getIP(), props.getPort());
-            sockets.add(socket);
-            FileReceiveTask task = new FileReceiveTask(files, socket, latch, fileCountProgressProperty, fileSizeProgressProperty);
-            futures.add(executor.submit(task));
+            active.add(openDataSocket(completion, running, sockets));
         }
+        dataSockets = active.size();
+        SocketTuner tuner = tuning ? new SocketTuner(numberOfSockets, config.minSockets(), config.maxSockets()) : null;
+        long sampledBytes = progress.getBytes();
+        long sampledAt = System.nanoTime();
 
         try {
-            for (Future<Integer> future : futures) {
-                if (future.get() == -1) {
-                    log.info("Total downloaded " + fileSizeProgressProperty.get());
-                    run();
-                    executor.shutdown();
-                    return;
+            while (!running.isEmpty()) {
+                Future<Integer> future = tuning ? completion.poll(config.autoTuneMillis(), TimeUnit.MILLISECONDS) : completion.take();
+                if (future != null) {
+                    FileReceiveTask task = running.remove(future);
+                    active.remove(task);
+                    dataSockets = active.size();
+                    if (!task.isRetiring()) {
+                        finished.add(task);
+                    }
+                    if (future.get() == -1 || fileListFailed) {
+                        log.info("Total downloaded " + progress.getBytes());
+                        // a journal without the complete file list is not resumed
+                        journal.close();
+                        reconnects.increment();
+                        copy();
+                        executor.shutdown();
+                        return;
+                    }
+                    continue;
                 }
+
+                long now = System.nanoTime();
+                double throughput = (progress.getBytes() - sampledBytes) * 1e9 / (now - sampledAt);
+                sampledBytes = progress.getBytes();
+                sampledAt = now;
+                int target = tuner.next(throughput);
+                int before = active.size();
+                // sockets opened once the queue is drained would only send END
+                while (active.size() < target && (!files.isEmpty() || scanCompleted.getCount() > 0)) {
+                    active.add(openDataSocket(completion, running, sockets));
+                }
+                while (active.size() > target) {
+                    active.removeLast().retire();
+                }
+                if (active.size() != before) {
+                    log.info("Data sockets: " + before + " -> " + active.size() + " at " + (long) throughput + " B/s");
+                }
+                dataSockets = active.size();
             }
+            long copied = System.nanoTime();
 
             for (Socket socket : sockets) {
                 if (!socket.isClosed()) {
@@ -174,39 +348,83 @@ public class Client implements Runnable {
                 }
             }
 
-            latch.await();
+            scanCompleted.await();
             executor.shutdown();
+            reportTailIdle(finished, copied);
+            journal.delete();
+            log.info("File handles: " + MyFileWriter.getHandleCache());
         } catch (InterruptedException e) {
             throw new InterruptedException();
         } catch (ExecutionException e) {
-            e.printStackTrace();
+            executor.shutdownNow();
+            throw new IOException("Data socket failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Logs how long every socket waited for the others at the end of the copy, the time the scheduling policy
+     * could still win. Sockets retired by the tuning are left out.
+     */
+    private void reportTailIdle(List<FileReceiveTask> finished, long end) {
+        StringBuilder idle = new StringBuilder();
+        long total = 0;
+        for (FileReceiveTask task : finished) {
+            long nanos = end - task.getFinishedAt();
+            total += nanos;
+            idle.append(idle.isEmpty() ? "" : ", ").append(TimeUnit.NANOSECONDS.toMillis(nanos)).append(" ms");
         }
+        tailIdle.add(total);
+        log.info("Tail idle of the sockets (" + config.scheduling() + "): " + idle + ", " + TimeUnit.NANOSECONDS.toMillis(total) + " ms in total");
+    }
+
+    /**
+     * Opens a data socket, joins it to the session and starts its receive task. The server serves the socket as
+     * soon as its JOIN arrives, also in the middle of the copy.
+     */
+    private FileReceiveTask openDataSocket(CompletionService<Integer> completion, Map<Future<Integer>, FileReceiveTask> running,
+                                           List<Socket> sockets) throws IOException {
+        // a channel backed socket lets the tasks read payloads straight into direct buffers
+        Socket socket = SocketChannel.open(new InetSocketAddress(config.ip(), config.port())).socket();
+        sockets.add(socket);
+        // the server serves several clients, the first frame tells it which session the socket belongs to
+        FrameWriter join = new FrameWriter(socket.getOutputStream());
+        join.writeJoin(session);
+        join.flush();
+        FileReceiveTask task = new FileReceiveTask(files, socket, scanCompleted, tracker, deltaFiles, journal, progress, config,
+                config.compression().newCodec(config.compressionLevel()));
+        running.put(completion.submit(task), task);
+        return task;
     }
 
-    @SuppressWarnings("unchecked")
-    public static synchronized BlockingQueue<FileInfo> loadProgress() {
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream("client_progress.obj"))) {
-            return (BlockingQueue<FileInfo>) ois.readObject();
-        } catch (FileNotFoundException e) {
-            return new LinkedBlockingQueue<>();
-        } catch (IOException | ClassNotFoundException e) {
-            e.printStackTrace();
+    /**
+     * Forces the copies of the files to the disk before the journal records them as transferred.
+     */
+    private void forceCopies(Set<String> fileNames) {
+        for (String fileName : fileNames) {
+            File copy = config.copyOf(fileName);
+            force(copy);
+            File part = DeltaFiles.partOf(copy);
+            if (part.exists()) {
+                force(part);
+            }
         }
-        return new LinkedBlockingQueue<>();
     }
 
-    public static synchronized void saveProgress(BlockingQueue<FileInfo> files) {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream("client_progress.obj"))) {
-            oos.writeObject(files);
+    private static void force(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(false);
+        } catch (NoSuchFileException e) {
+            // a delta part that replaced the copy meanwhile
         } catch (IOException e) {
-            e.printStackTrace();
+            log.warn("Cannot force " + file + " to the disk: " + e);
         }
     }
 
     public void deleteProgress() {
-        File file = new File("client_progress.obj");
-        if (file.exists()) {
-            file.delete();
+        try {
+            Files.deleteIfExists(config.journal());
+        } catch (IOException e) {
+            log.error("Cannot delete " + config.journal());
         }
     }
 
@@ -0,0 +1,85 @@
+package sk.upjs.kopr.copy.client;
+
+import sk.upjs.kopr.copy.TransferMode;
+import sk.upjs.kopr.copy.compression.Compression;
+import sk.upjs.kopr.tools.FilePathChanger;
+import sk.upjs.kopr.tools.PropertiesManager;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Settings of one {@link Client}. Every client keeps its own, so one JVM can run several copies at once, as long
+ * as they save to different directories and keep different journals.
+ *
+ * @param directory  directory on the server, as it is named in the file list
+ * @param pathToSave directory the copy of {@code directory} is created in
+ * @param zeroCopyChecksums whether the server checksums the DATA frames it sends with {@code transferTo}
+ * @param journal    progress journal of the copy, an interrupted copy resumes from it
+ * @param virtualThreads whether the receive tasks run on virtual threads
+ * @param autoTuneMillis interval of the socket count tuning, 0 keeps {@code numberOfSockets} for the whole copy
+ * @param minSockets     fewest data sockets the tuning goes down to
+ * @param maxSockets     most data sockets the tuning goes up to
+ * @param scheduling     order in which the data sockets request the files
+ * @param schedulePriorities globs of {@link SchedulingPolicy#PRIORITY}, relative to {@code directory}
+ */
+public record ClientConfig(String ip, int port, int numberOfSockets, String directory, String pathToSave,
+                           TransferMode transferMode, boolean zeroCopyChecksums, Compression compression, int compressionLevel, int pipelineWindow,
+                           boolean syncMode, long deltaThreshold, Path journal, long journalSyncMillis, boolean journalFsync,
+                           long progressIntervalMillis, boolean virtualThreads, long autoTuneMillis, int minSockets,
+                           int maxSockets, SchedulingPolicy scheduling, List<String> schedulePriorities) {
+
+    public static final Path DEFAULT_JOURNAL = Path.of("client_progress.journal");
+
+    /**
+     * @return the settings of config.properties
+     */
+    public static ClientConfig fromProperties() {
+        PropertiesManager props = PropertiesManager.getInstance();
+        return new ClientConfig(props.getIP(), props.getPort(), props.getNumberOfSockets(), props.getDirectory(),
+                props.getPathToSave(), props.getTransferMode(), props.isZeroCopyChecksums(), props.getCompression(), props.getCompressionLevel(),
+                props.getPipelineWindow(), props.isSyncMode(), props.isDeltaMode() ? props.getDeltaThreshold() : 0,
+                DEFAULT_JOURNAL, props.getJournalSyncMillis(), props.isJournalFsync(), props.getProgressIntervalMillis(),
+                props.isVirtualThreads(), props.isAutoTuneSockets() ? props.getAutoTuneMillis() : 0, props.getMinSockets(),
+                props.getMaxSockets(), SchedulingPolicy.fromString(props.getScheduling()), props.getSchedulePriorities());
+    }
+
+    public ClientConfig withServer(String ip, int port) {
+        return new ClientConfig(ip, port, numberOfSockets, directory, pathToSave, transferMode, zeroCopyChecksums, compression, compressionLevel,
+                pipelineWindow, syncMode, deltaThreshold, journal, journalSyncMillis, journalFsync, progressIntervalMillis, virtualThreads,
+                autoTuneMillis, minSockets, maxSockets, scheduling, schedulePriorities);
+    }
+
+    public ClientConfig withNumberOfSockets(int numberOfSockets) {
+        return new ClientConfig(ip, port, numberOfSockets, directory, pathToSave, transferMode, zeroCopyChecksums, compression, compressionLevel,
+                pipelineWindow, syncMode, deltaThreshold, journal, journalSyncMillis, journalFsync, progressIntervalMillis, virtualThreads,
+                autoTuneMillis, minSockets, maxSockets, scheduling, schedulePriorities);
+    }
+
+    public ClientConfig withPaths(String directory, String pathToSave) {
+        return new ClientConfig(ip, port, numberOfSockets, directory, pathToSave, transferMode, zeroCopyChecksums, compression, compressionLevel,
+                pipelineWindow, syncMode, deltaThreshold, journal, journalSyncMillis, journalFsync, progressIntervalMillis, virtualThreads,
+                autoTuneMillis, minSockets, maxSockets, scheduling, schedulePriorities);
+    }
+
+    public ClientConfig withJournal(Path journal) {
+        return new ClientConfig(ip, port, numberOfSockets, directory, pathToSave, transferMode, zeroCopyChecksums, compression, compressionLevel,
+                pipelineWindow, syncMode, deltaThreshold, journal, journalSyncMillis, journalFsync, progressIntervalMillis, virtualThreads,
+                autoTuneMillis, minSockets, maxSockets, scheduling, schedulePriorities);
+    }
+
+    /**
+     * @return the copy of a file from the file list
+     */
+    public File copyOf(String fileName) {
+        return new File(FilePathChanger.modifyBasePath(fileName, directory, pathToSave));
+    }
+
+    /**
+     * @return the name the server uses for a file of the copy, or {@code null} if the file lies outside the copy
+     */
+    public String sourceOf(String copy) {
+        return FilePathChanger.restoreBasePath(copy, directory, pathToSave);
+    }
+}
@@ -0,0 +1,75 @@
+package sk.upjs.kopr.copy.client;
+
+import lombok.extern.slf4j.Slf4j;
+import sk.upjs.kopr.copy.FileBundle;
+import sk.upjs.kopr.copy.FileInfo;
+import sk.upjs.kopr.tools.FilePathChanger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Files whose previous copy is large enough to be rebuilt from a delta. The new content is written into
+ * a {@code .part} file next to the copy, all ranges read their unchanged blocks from the copy, and the
+ * part replaces the copy once the last range is written.
+ */
+@Slf4j
+public class DeltaFiles {
+
+    private static final String PART_SUFFIX = ".part";
+
+    private final ClientConfig config;
+    private final long threshold;
+    private final Set<String> files = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Takes the minimal length of the copy from {@link ClientConfig#deltaThreshold()}, 0 turns deltas off.
+     */
+    public DeltaFiles(ClientConfig config) {
+        this.config = config;
+        this.threshold = config.deltaThreshold();
+    }
+
+    /**
+     * Decides for newly listed files. A file with a part left by an interrupted transfer always continues
+     * as a delta, its copy still holds the blocks the part refers to.
+     */
+    public void select(Collection<FileInfo> workItems) {
+        for (FileInfo workItem : workItems) {
+            if (workItem instanceof FileBundle) {
+                continue;
+            }
+            File copy = copyOf(workItem.fileName);
+            if (partOf(copy).exists() || (threshold > 0 && copy.length() >= threshold)) {
+                files.add(workItem.fileName);
+            }
+        }
+    }
+
+    public boolean isDelta(String fileName) {
+        return files.contains(fileName);
+    }
+
+    /**
+     * Replaces the copy with the completed part.
+     */
+    public void complete(String fileName) throws IOException {
+        File copy = copyOf(fileName);
+        Files.move(partOf(copy).toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        files.remove(fileName);
+        log.info("File " + FilePathChanger.getLastDirectoryName(fileName) + " rebuilt from delta");
+    }
+
+    public File copyOf(String fileName) {
+        return config.copyOf(fileName);
+    }
+
+    public static File partOf(File copy) {
+        return new File(copy.getPath() + PART_SUFFIX);
+    }
+}
@@ -0,0 +1,61 @@
+package sk.upjs.kopr.copy.client;
+
+import sk.upjs.kopr.copy.FileInfo;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the bytes of every file that are still missing on the client. Ranges of one file may land on
+ * different sockets in any order, the file is complete once the last of them has been written.
+ */
+public final class FileCompletionTracker {
+
+    private final Map<String, AtomicLong> remainingBytes = new ConcurrentHashMap<>();
+
+    public FileCompletionTracker(Collection<FileInfo> files) {
+        add(files);
+    }
+
+    /**
+     * Registers files announced after the transfer started. All ranges of a file have to be added at once.
+     */
+    public void add(Collection<FileInfo> files) {
+        for (FileInfo workItem : files) {
+            for (FileInfo fileInfo : workItem.parts()) {
+                remainingBytes.computeIfAbsent(fileInfo.fileName, name -> new AtomicLong())
+                        .addAndGet(fileInfo.size - fileInfo.offset);
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if the range was the last missing part of its file
+     */
+    public boolean rangeCompleted(FileInfo range) {
+        return bytesCompleted(range.fileName, range.size - range.offset);
+    }
+
+    /**
+     * Counts a part of a range, the rest of which is written later, for example a frame that failed
+     * verification and is requested again.
+     *
+     * @return {@code true} if the bytes were the last missing part of the file
+     */
+    public boolean bytesCompleted(String fileName, long bytes) {
+        AtomicLong remaining = remainingBytes.get(fileName);
+        if (remaining == null) {
+            return true;
+        }
+        if (remaining.addAndGet(-bytes) <= 0) {
+            return remainingBytes.remove(fileName) != null;
+        }
+        return false;
+    }
+
+    public int remainingFiles() {
+        return remainingBytes.size();
+    }
+}
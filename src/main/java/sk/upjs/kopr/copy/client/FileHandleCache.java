@@ -0,0 +1,177 @@
+package sk.upjs.kopr.copy.client;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps at most {@code maxOpenFiles} destination files open. The least recently used handle is closed
+ * when a new one is needed and reopened transparently if a late range of its file arrives.
+ * A handle that is being written to is closed only after its writer releases it. The bookkeeping is guarded by a
+ * {@link ReentrantLock} rather than a monitor, a virtual thread waiting for it unmounts from its carrier.
+ */
+@Slf4j
+public class FileHandleCache {
+
+    private final int maxOpenFiles;
+    private final Map<File, Handle> handles = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public FileHandleCache(int maxOpenFiles) {
+        this.maxOpenFiles = Math.max(1, maxOpenFiles);
+    }
+
+    /**
+     * Returns an open handle of the file, the caller has to {@link Handle#release()} it after the write.
+     */
+    public Handle acquire(File file) throws IOException {
+        lock.lock();
+        try {
+            Handle handle = handles.get(file);
+            if (handle != null) {
+                hits.increment();
+                handle.users++;
+                return handle;
+            }
+        } finally {
+            lock.unlock();
+        }
+        misses.increment();
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        Handle handle = put(file, channel);
+        if (handle.channel != channel) { // another writer opened the file meanwhile
+            channel.close();
+        }
+        return handle;
+    }
+
+    /**
+     * Registers a channel opened by the caller and acquires it.
+     */
+    public Handle put(File file, FileChannel channel) {
+        Handle evicted = null;
+        Handle handle;
+        lock.lock();
+        try {
+            handle = handles.get(file);
+            if (handle == null) {
+                handle = new Handle(file, channel);
+                handles.put(file, handle);
+                if (handles.size() > maxOpenFiles) {
+                    Iterator<Handle> eldest = handles.values().iterator();
+                    evicted = eldest.next();
+                    eldest.remove();
+                    evicted.evicted = true;
+                    evictions.increment();
+                    if (evicted.users > 0) {
+                        evicted = null; // closed by its last user
+                    }
+                }
+            }
+            handle.users++;
+        } finally {
+            lock.unlock();
+        }
+        if (evicted != null) {
+            evicted.closeChannel();
+        }
+        return handle;
+    }
+
+    /**
+     * Closes the handle of a completed file.
+     */
+    public void invalidate(File file) {
+        Handle handle;
+        lock.lock();
+        try {
+            handle = handles.remove(file);
+            if (handle == null) {
+                return;
+            }
+            handle.evicted = true;
+            if (handle.users > 0) {
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        handle.closeChannel();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public int getOpenHandles() {
+        lock.lock();
+        try {
+            return handles.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxOpenFiles() {
+        return maxOpenFiles;
+    }
+
+    @Override
+    public String toString() {
+        return "open=" + getOpenHandles() + "/" + maxOpenFiles + ", hits=" + getHits()
+                + ", misses=" + getMisses() + ", evictions=" + getEvictions();
+    }
+
+    public class Handle {
+        private final File file;
+        public final FileChannel channel;
+        private int users;
+        private boolean evicted;
+
+        private Handle(File file, FileChannel channel) {
+            this.file = file;
+            this.channel = channel;
+        }
+
+        public void release() {
+            lock.lock();
+            try {
+                users--;
+                if (users > 0 || !evicted) {
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+            closeChannel();
+        }
+
+        private void closeChannel() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.error("Error while closing " + file);
+            }
+        }
+    }
+}
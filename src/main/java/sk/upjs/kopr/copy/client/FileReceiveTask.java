@@ -1,75 +1,239 @@
 package sk.upjs.kopr.copy.client;
 
 import lombok.extern.slf4j.Slf4j;
+import sk.upjs.kopr.copy.FileBundle;
 import sk.upjs.kopr.copy.FileInfo;
+import sk.upjs.kopr.copy.ProgressJournal;
+import sk.upjs.kopr.copy.TransferMode;
+import sk.upjs.kopr.copy.compression.Codec;
+import sk.upjs.kopr.copy.delta.BlockSignatures;
+import sk.upjs.kopr.copy.protocol.FrameReader;
+import sk.upjs.kopr.copy.protocol.FrameWriter;
+import sk.upjs.kopr.copy.protocol.MessageType;
+import sk.upjs.kopr.exceptions.RemoteFailureException;
 import sk.upjs.kopr.exceptions.ServerTerminatedConnectionException;
+import sk.upjs.kopr.metrics.Counter;
+import sk.upjs.kopr.metrics.LatencyHistogram;
+import sk.upjs.kopr.metrics.Meter;
+import sk.upjs.kopr.metrics.Metrics;
+import sk.upjs.kopr.tools.DirectBufferPool;
 import sk.upjs.kopr.tools.FilePathChanger;
-import sk.upjs.kopr.tools.ThreadSafeLong;
 
 import java.io.*;
+import java.net.ProtocolException;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
-
-import static com.sun.javafx.application.PlatformImpl.runLater;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
 
 @Slf4j
 public class FileReceiveTask implements Callable<Integer> {
 
-    private static final int BUFFER_SIZE = 16384;
+    private static final long SCAN_POLL_MILLIS = 50;
+
+    private static final Meter receivedBytes = Metrics.getInstance().meter("client_received_bytes");
+    private static final Meter receivedFiles = Metrics.getInstance().meter("client_received_files");
+    private static final LatencyHistogram requestLatency = Metrics.getInstance().histogram("client_request");
+    private static final Counter retries = Metrics.getInstance().counter("client_checksum_retries");
+
     private final BlockingQueue<FileInfo> files;
-    private final CountDownLatch latch;
+    private final CountDownLatch scanCompleted;
+    private final FileCompletionTracker tracker;
+    private final DeltaFiles deltaFiles;
+    private final ProgressJournal journal;
 
     private final Socket socket;
-    private ObjectOutputStream oos;
-    private ObjectInputStream ois;
+    private FrameWriter out;
+    private FrameReader in;
+    private ByteBuffer buffer;
+    private final CRC32C crc = new CRC32C();
 
-    private final ThreadSafeLong fileProgress;
-    private final ThreadSafeLong fileSizeProgress;
+    private final TransferProgress progress;
+    private final Meter socketBytes;
+    private final Meter socketFiles;
+    private final ClientConfig config;
+    private final int pipelineWindow;
+    private final Codec codec;
+    private final boolean verifyRanges;
+    private volatile boolean retiring;
+    private long finishedAt;
 
-    public FileReceiveTask(BlockingQueue<FileInfo> files, Socket socket, CountDownLatch latch, ThreadSafeLong fileProgress, ThreadSafeLong fileSizeProgress) {
+    /**
+     * @param codec decompresses the COMPRESSED frames of this socket, {@code null} if the server sends raw data
+     */
+    public FileReceiveTask(BlockingQueue<FileInfo> files, Socket socket, CountDownLatch scanCompleted, FileCompletionTracker tracker, DeltaFiles deltaFiles, ProgressJournal journal, TransferProgress progress, ClientConfig config, Codec codec) {
         this.socket = socket;
         this.files = files;
-        this.latch = latch;
-        this.fileProgress = fileProgress;
-        this.fileSizeProgress = fileSizeProgress;
+        this.scanCompleted = scanCompleted;
+        this.tracker = tracker;
+        this.deltaFiles = deltaFiles;
+        this.journal = journal;
+        this.progress = progress;
+        String port = String.valueOf(socket.getLocalPort());
+        this.socketBytes = Metrics.getInstance().meter("client_socket_received_bytes", "socket", port);
+        this.socketFiles = Metrics.getInstance().meter("client_socket_received_files", "socket", port);
+        this.config = config;
+        this.pipelineWindow = Math.max(1, config.pipelineWindow());
+        this.codec = codec;
+        // frames the server sends with transferTo carry no checksum unless the client asked for it
+        this.verifyRanges = config.zeroCopyChecksums() || config.transferMode() != TransferMode.ZERO_COPY || codec != null;
+    }
+
+    /**
+     * Stops requesting new files; the task receives the responses it is waiting for, ends the socket with END
+     * and returns 1. The rest of the queue is left to the other sockets.
+     */
+    public void retire() {
+        retiring = true;
+    }
+
+    public boolean isRetiring() {
+        return retiring;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when the task found nothing left to request, valid once it returned 1
+     */
+    public long getFinishedAt() {
+        return finishedAt;
     }
 
     @Override
-    public Integer call() {
+    public Integer call() throws RemoteFailureException {
+        buffer = DirectBufferPool.getInstance().acquire();
+        try {
+            return receiveAll();
+        } finally {
+            DirectBufferPool.getInstance().release(buffer);
+            Metrics.getInstance().remove(socketBytes);
+            Metrics.getInstance().remove(socketFiles);
+        }
+    }
+
+    private Integer receiveAll() throws RemoteFailureException {
         createStreams();
 
+        Map<Integer, FileInfo> inFlight = new LinkedHashMap<>();
+        Map<Integer, DeltaBase> deltaBases = new HashMap<>();
+        Map<Integer, Long> requestedAt = new HashMap<>();
+        int nextTag = 0;
+        FileInfo held = null;
         while (true) {
             try {
-                FileInfo origFile = files.poll();
-                if (origFile == null) { // sending poison pill
+                // keep up to pipelineWindow requests outstanding, so the server never waits for a round trip
+                while (!retiring && inFlight.size() < pipelineWindow) {
+                    FileInfo origFile = held != null ? held : files.poll();
+                    if (origFile == null) {
+                        break;
+                    }
+                    held = origFile;
+                    if (!(origFile instanceof FileBundle) && origFile.size > origFile.offset && deltaFiles.isDelta(origFile.fileName)) {
+                        // the signatures outgrow the socket buffers: while the server writes earlier responses it reads
+                        // no request, and while this task writes the signatures it reads no response
+                        if (!inFlight.isEmpty()) {
+                            break;
+                        }
+                        deltaBases.put(nextTag, requestDelta(nextTag, origFile));
+                    } else {
+                        out.writeRequest(nextTag, origFile);
+                    }
+                    held = null;
+                    requestedAt.put(nextTag, System.nanoTime());
+                    inFlight.put(nextTag++, origFile);
+                }
+                out.flush();
+
+                if (inFlight.isEmpty() && retiring) {
+                    requeue(inFlight, held);
                     break;
                 }
+                if (inFlight.isEmpty()) {
+                    // the server may still be searching, more files can arrive until the list is complete
+                    if (scanCompleted.await(SCAN_POLL_MILLIS, TimeUnit.MILLISECONDS) && files.isEmpty()) {
+                        break; // sending poison pill
+                    }
+                    continue;
+                }
 
-                log.info("Starting saving file " + FilePathChanger.getLastDirectoryName(origFile.fileName) + " from offset=" + origFile.offset);
-                File fileToSave = new File(FilePathChanger.modifyBasePath(origFile.fileName));
-                MyFileWriter myFileWriter = MyFileWriter.getInstance(fileToSave, origFile.size);
+                MessageType type = in.readType();
+                if (type != MessageType.DATA && type != MessageType.COMPRESSED && type != MessageType.BUNDLE && type != MessageType.BLOCK) {
+                    throw new ProtocolException("Unexpected " + type + " on data socket");
+                }
+                int tag = in.readVarInt();
+                FileInfo origFile = inFlight.remove(tag);
+                if (origFile == null) {
+                    throw new ProtocolException("Response for unknown request " + tag);
+                }
 
-                oos.writeObject(origFile);
-                oos.flush();
+                DeltaBase deltaBase = deltaBases.remove(tag);
+                if (deltaBase != null) {
+                    receiveDelta(tag, type, origFile, deltaBase);
+                } else if (type == MessageType.BLOCK) {
+                    throw new ProtocolException("Block reference for " + origFile + " without delta");
+                } else if (origFile instanceof FileBundle bundle) {
+                    receiveBundle(tag, bundle);
+                } else {
+                    log.info("Starting saving file " + FilePathChanger.getLastDirectoryName(origFile.fileName) + " from offset=" + origFile.offset);
+                    File fileToSave = config.copyOf(origFile.fileName);
+                    MyFileWriter myFileWriter = MyFileWriter.getInstance(fileToSave, origFile.fileLength);
 
-                receiveFile(origFile, myFileWriter);
-            } catch (ServerTerminatedConnectionException | SocketException e) {
+                    receiveFile(tag, type, origFile, myFileWriter);
+                }
+                // from sending the request until its whole response is written, including the wait behind earlier responses
+                requestLatency.recordSince(requestedAt.remove(tag));
+            } catch (RemoteFailureException e) {
+                // the server cannot serve the copy, a resume would fail the same way
+                deltaBases.values().forEach(DeltaBase::close);
+                requeue(inFlight, held);
+                throw e;
+            } catch (ServerTerminatedConnectionException | SocketException | EOFException | ProtocolException e) {
+                // requests the server did not answer yet go back to the queue, the journal still has them as planned
+                deltaBases.values().forEach(DeltaBase::close);
+                requeue(inFlight, held);
                 return -1;
             } catch (IOException e) {
-                e.printStackTrace();
+                // channel backed sockets report a reset or a broken pipe as a plain IOException, the stream is lost either way
+                log.error("Data socket failed: " + e);
+                deltaBases.values().forEach(DeltaBase::close);
+                requeue(inFlight, held);
+                return -1;
+            } catch (InterruptedException e) {
+                requeue(inFlight, held);
+                return -1;
             }
         }
+        finishedAt = System.nanoTime();
+        if (in.getCompressionStats() != null) {
+            log.info("Compression of socket " + socket.getLocalPort() + ": " + in.getCompressionStats());
+        }
         sendPoisonPill();
         return 1;
     }
 
+    /**
+     * Returns the requests the server did not answer, and the one not sent yet, to the queue.
+     */
+    private void requeue(Map<Integer, FileInfo> inFlight, FileInfo held) {
+        files.addAll(inFlight.values());
+        if (held != null) {
+            files.add(held);
+        }
+    }
+
     private void sendPoisonPill() {
         try {
-            oos.writeObject(new FileInfo("", 0L, -1L));
-            oos.flush();
+            out.writeEnd();
+            out.flush();
 
             log.info("Sending poison pill");
         } catch (EOFException e) {
@@ -81,46 +245,338 @@ public class FileReceiveTask implements Callable<Integer> {
 
     private void createStreams() {
         try {
-            oos = new ObjectOutputStream(socket.getOutputStream());
-            ois = new ObjectInputStream(socket.getInputStream());
+            out = new FrameWriter(socket.getOutputStream());
+            in = new FrameReader(socket.getInputStream(), socket.getChannel());
+            if (codec != null) {
+                in.setCodec(codec);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    public void receiveFile(FileInfo fileInfo, MyFileWriter myFileWriter) throws ServerTerminatedConnectionException {
+    /**
+     * Receives the DATA frames answering one range request. The type and tag of the first frame
+     * were already read by the caller. A frame failing its checksum is requested again on its own.
+     */
+    public void receiveFile(int tag, MessageType type, FileInfo fileInfo, MyFileWriter myFileWriter) throws ServerTerminatedConnectionException {
         long fileOffset = fileInfo.offset;
+        long failed = 0;
+        VerifiedRun run = new VerifiedRun(fileInfo);
         try {
+            int frameLength = in.readDataLength(type);
             while (true) {
-                long min = Math.min(fileInfo.size - fileOffset, BUFFER_SIZE);
-                byte[] bytes = ois.readNBytes((int) min);
-                if (bytes.length > 0) {
-                    myFileWriter.write(fileOffset, bytes, 0, bytes.length);
-                    runLater(() -> fileSizeProgress.set(fileSizeProgress.get() + bytes.length));
-                }
-                if (bytes.length < BUFFER_SIZE) {
-                    latch.countDown();
-                    myFileWriter.close();
-                    runLater(() -> fileProgress.set(fileProgress.get() + 1));
-                    log.info("File " + FilePathChanger.getLastDirectoryName(fileInfo.fileName) + " saved");
+                if (fileOffset + frameLength > fileInfo.size) {
+                    throw new ProtocolException("Frame of " + frameLength + " bytes exceeds " + fileInfo);
+                }
+                if (receiveFrame(frameLength, fileOffset, myFileWriter, verifyRanges)) {
+                    run.verified(frameLength);
+                } else {
+                    requestAgain(fileInfo, fileOffset, frameLength);
+                    run.failed(frameLength);
+                    failed += frameLength;
+                }
+                fileOffset += frameLength;
+                if (fileOffset >= fileInfo.size) {
                     break;
                 }
-                fileOffset += bytes.length;
+                frameLength = in.readDataHeader(tag);
+                if (frameLength == 0) {
+                    throw new EOFException(fileInfo + " ended at " + fileOffset);
+                }
             }
 
+            if (tracker.bytesCompleted(fileInfo.fileName, fileInfo.size - fileInfo.offset - failed)) {
+                myFileWriter.close(fileInfo.lastModified);
+                fileReceived();
+                log.info("File " + FilePathChanger.getLastDirectoryName(fileInfo.fileName) + " saved");
+            } else {
+                log.info("Range " + fileInfo.offset + "-" + fileInfo.size + " of " + FilePathChanger.getLastDirectoryName(fileInfo.fileName) + " saved");
+            }
+            run.finish();
+
         } catch (IOException e) {
-            FileInfo info = new FileInfo(fileInfo.fileName, fileOffset, fileInfo.size);
+            run.record();
+            FileInfo info = fileInfo.from(fileOffset);
             files.add(info);
-            Client.saveProgress(files);
-            log.info("Progress saved");
+            log.info("Range " + info + " requested again");
+            throw new ServerTerminatedConnectionException();
+        }
+    }
+
+    /**
+     * Receives a BUNDLE response, the type and tag of its header were already read by the caller.
+     */
+    public void receiveBundle(int tag, FileBundle bundle) throws ServerTerminatedConnectionException {
+        int received = 0;
+        try {
+            long[] lengths = in.readBundleLengths();
+            if (lengths.length != bundle.files.size()) {
+                throw new ProtocolException("Expected bundle of " + bundle.files.size() + " files, received " + lengths.length);
+            }
+
+            for (; received < lengths.length; received++) {
+                FileInfo fileInfo = bundle.files.get(received);
+                File fileToSave = config.copyOf(fileInfo.fileName);
+                MyFileWriter myFileWriter = MyFileWriter.getInstance(fileToSave, fileInfo.fileLength);
+
+                long fileOffset = fileInfo.offset;
+                long end = fileInfo.offset + lengths[received];
+                long failed = 0;
+                VerifiedRun run = new VerifiedRun(fileInfo);
+                while (fileOffset < end) {
+                    int frameLength = in.readDataHeader(tag);
+                    if (frameLength == 0 || fileOffset + frameLength > end) {
+                        throw new ProtocolException("Frame of " + frameLength + " bytes does not fit " + fileInfo);
+                    }
+                    if (receiveFrame(frameLength, fileOffset, myFileWriter, verifyRanges)) {
+                        run.verified(frameLength);
+                    } else {
+                        requestAgain(fileInfo, fileOffset, frameLength);
+                        run.failed(frameLength);
+                        failed += frameLength;
+                    }
+                    fileOffset += frameLength;
+                }
+
+                if (tracker.bytesCompleted(fileInfo.fileName, fileInfo.size - fileInfo.offset - failed)) {
+                    myFileWriter.close(fileInfo.lastModified);
+                    fileReceived();
+                }
+                run.finish();
+            }
+            log.info("Bundle of " + lengths.length + " files saved");
+
+        } catch (IOException e) {
+            List<FileInfo> remaining = bundle.files.subList(received, bundle.files.size());
+            files.add(remaining.size() == 1 ? remaining.get(0) : new FileBundle(remaining));
+            log.info("Remaining " + remaining.size() + " files of the bundle requested again");
+            throw new ServerTerminatedConnectionException();
+        }
+    }
+
+    /**
+     * Signatures of the client's copy over the requested range and the copy opened for reading the
+     * blocks the server refers to.
+     */
+    private record DeltaBase(FileChannel copy, BlockSignatures signatures) {
+        void close() {
+            try {
+                if (copy != null) copy.close();
+            } catch (IOException e) {
+                log.warn("Cannot close " + copy);
+            }
+        }
+    }
+
+    private DeltaBase requestDelta(int tag, FileInfo fileInfo) throws IOException {
+        int blockSize = BlockSignatures.blockSize(fileInfo.size - fileInfo.offset);
+        DeltaBase deltaBase;
+        FileChannel copy = null;
+        try {
+            copy = FileChannel.open(deltaFiles.copyOf(fileInfo.fileName).toPath(), StandardOpenOption.READ);
+            // the last range also offers the tail of a copy that was longer than the new file
+            long end = fileInfo.size == fileInfo.fileLength ? copy.size() : Math.min(fileInfo.size, copy.size());
+            deltaBase = new DeltaBase(copy, BlockSignatures.compute(copy, fileInfo.offset, end, blockSize));
+        } catch (IOException e) {
+            // without a readable copy every byte comes as a literal
+            log.warn("Cannot read the copy of " + fileInfo + ": " + e);
+            new DeltaBase(copy, null).close();
+            deltaBase = new DeltaBase(null, new BlockSignatures(blockSize, 0, new int[0], new byte[0][]));
+        }
+        out.writeDeltaRequest(tag, fileInfo, deltaBase.signatures());
+        return deltaBase;
+    }
+
+    /**
+     * Rebuilds a range into the part file from the literal DATA frames and the BLOCK references of a
+     * delta response. The type and tag of the first frame were already read by the caller. If a literal
+     * fails its checksum, the whole range is requested again once the response is read.
+     */
+    public void receiveDelta(int tag, MessageType type, FileInfo fileInfo, DeltaBase deltaBase) throws ServerTerminatedConnectionException {
+        BlockSignatures signatures = deltaBase.signatures();
+        long fileOffset = fileInfo.offset;
+        long failed = 0;
+        try (FileChannel copy = deltaBase.copy()) {
+            File part = DeltaFiles.partOf(deltaFiles.copyOf(fileInfo.fileName));
+            MyFileWriter myFileWriter = MyFileWriter.getInstance(part, fileInfo.fileLength);
+            while (true) {
+                if (type == MessageType.DATA || type == MessageType.COMPRESSED) {
+                    int frameLength = in.readDataLength(type);
+                    if (frameLength == 0 || fileOffset + frameLength > fileInfo.size) {
+                        throw new ProtocolException("Frame of " + frameLength + " bytes does not fit " + fileInfo);
+                    }
+                    if (!receiveFrame(frameLength, fileOffset, myFileWriter, true)) {
+                        failed += frameLength;
+                    }
+                    fileOffset += frameLength;
+                } else if (type == MessageType.BLOCK) {
+                    int index = in.readVarInt();
+                    if (index >= signatures.count() || fileOffset + signatures.blockLength(index) > fileInfo.size) {
+                        throw new ProtocolException("Block " + index + " does not fit " + fileInfo);
+                    }
+                    int length = signatures.blockLength(index);
+                    copyBlock(copy, fileInfo.offset + (long) index * signatures.blockSize, length, fileOffset, myFileWriter);
+                    fileOffset += length;
+                } else {
+                    throw new ProtocolException("Unexpected " + type + " in delta of " + fileInfo);
+                }
+                if (fileOffset >= fileInfo.size) {
+                    break;
+                }
+                type = in.readType();
+                int frameTag = in.readVarInt();
+                if (frameTag != tag) {
+                    throw new ProtocolException("Expected data for request " + tag + " but received " + frameTag);
+                }
+            }
+
+            if (failed > 0) {
+                log.warn("Checksum mismatch in the delta of " + fileInfo + ", requesting it again");
+                long counted = fileOffset - fileInfo.offset - failed;
+                progress.addBytes(-counted);
+                retries.increment();
+                files.add(fileInfo);
+            } else {
+                if (tracker.rangeCompleted(fileInfo)) {
+                    myFileWriter.close(fileInfo.lastModified);
+                    deltaFiles.complete(fileInfo.fileName);
+                    fileReceived();
+                } else {
+                    log.info("Range " + fileInfo.offset + "-" + fileInfo.size + " of " + FilePathChanger.getLastDirectoryName(fileInfo.fileName) + " rebuilt");
+                }
+                // a delta range counts only as a whole, the part file is rebuilt from its start
+                journal.completed(fileInfo.fileName, fileInfo.offset, fileInfo.size);
+            }
+
+        } catch (IOException e) {
+            // the range is requested again as a whole
+            long received = fileOffset - fileInfo.offset - failed;
+            progress.addBytes(-received);
+            files.add(fileInfo);
+            log.info("Range " + fileInfo + " requested again");
             throw new ServerTerminatedConnectionException();
         }
     }
 
+    private void copyBlock(FileChannel copy, long from, int length, long to, MyFileWriter myFileWriter) throws IOException {
+        int copied = 0;
+        while (copied < length) {
+            int size = Math.min(length - copied, buffer.capacity());
+            buffer.clear().limit(size);
+            while (buffer.hasRemaining()) {
+                if (copy.read(buffer, from + copied + buffer.position()) < 0) {
+                    throw new EOFException("Copy ended at " + (from + copied + buffer.position()));
+                }
+            }
+            myFileWriter.write(to + copied, buffer.flip());
+            copied += size;
+        }
+        bytesReceived(length);
+    }
+
+    /**
+     * Writes the payload of one frame and verifies it against the checksum from its header. Only a verified
+     * frame counts as received.
+     *
+     * @param verify {@code false} if the frame carries no checksum
+     * @return {@code false} if the payload is corrupted, its bytes in the file have to be written again
+     */
+    private boolean receiveFrame(int frameLength, long fileOffset, MyFileWriter myFileWriter, boolean verify) throws IOException {
+        crc.reset();
+        int received = 0;
+        while (received < frameLength) {
+            int length = Math.min(frameLength - received, buffer.capacity());
+            buffer.clear().limit(length);
+            in.readFully(buffer);
+            buffer.flip();
+            if (verify) {
+                crc.update(buffer);
+                buffer.rewind();
+            }
+            myFileWriter.write(fileOffset + received, buffer);
+            received += length;
+        }
+        if (verify && (int) crc.getValue() != in.getChecksum()) {
+            return false;
+        }
+        if (frameLength > 0) {
+            bytesReceived(frameLength);
+        }
+        return true;
+    }
+
+    private void bytesReceived(long length) {
+        progress.addBytes(length);
+        receivedBytes.add(length);
+        socketBytes.add(length);
+    }
+
+    private void fileReceived() {
+        progress.addFile();
+        receivedFiles.increment();
+        socketFiles.increment();
+    }
+
+    /**
+     * Queues a frame that failed its checksum as a range of its own. The rest of the response is kept. The journal
+     * records the verified bytes around it, so a resume requests the corrupted bytes again as well.
+     */
+    private void requestAgain(FileInfo fileInfo, long offset, int length) {
+        retries.increment();
+        log.warn("Checksum mismatch in " + FilePathChanger.getLastDirectoryName(fileInfo.fileName) + " at "
+                + offset + "-" + (offset + length) + ", requesting it again");
+        files.add(new FileInfo(fileInfo.fileName, offset, offset + length, fileInfo.fileLength, fileInfo.lastModified));
+    }
+
+    /**
+     * Verified bytes of one range not recorded in the journal yet. They are recorded at the latest after the
+     * journal's sync interval, before the gap of a corrupted frame and at the end of the range.
+     */
+    private final class VerifiedRun {
+        private final FileInfo range;
+        private long start;
+        private long end;
+        private long startedAt = System.nanoTime();
+
+        VerifiedRun(FileInfo range) {
+            this.range = range;
+            this.start = range.offset;
+            this.end = range.offset;
+        }
+
+        void verified(int length) {
+            end += length;
+            if (System.nanoTime() - startedAt >= TimeUnit.MILLISECONDS.toNanos(journal.getSyncMillis())) {
+                record();
+            }
+        }
+
+        void failed(int length) {
+            record();
+            start = end = end + length;
+        }
+
+        void record() {
+            if (end > start) {
+                journal.completed(range.fileName, start, end);
+            }
+            start = end;
+            startedAt = System.nanoTime();
+        }
+
+        void finish() {
+            if (range.offset == range.size) {
+                journal.completed(range.fileName, range.offset, range.size); // an empty file
+            }
+            record();
+        }
+    }
+
     private void closeConnection() {
         try {
-            if (oos != null) oos.close();
-            if (ois != null) ois.close();
+            if (out != null) out.close();
+            if (in != null) in.close();
             if (socket != null && !socket.isClosed()) socket.close();
         } catch (IOException e) {
             e.printStackTrace();
@@ -1,41 +1,111 @@
 package sk.upjs.kopr.copy.client;
 
+import sk.upjs.kopr.metrics.LatencyHistogram;
+import sk.upjs.kopr.metrics.Metrics;
+import sk.upjs.kopr.tools.PropertiesManager;
+
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Writes received ranges into the destination file. Positional {@link FileChannel} writes do not move
+ * a shared file pointer, so several sockets can write different ranges of one file without locking.
+ * Open channels are borrowed from a bounded {@link FileHandleCache}, a writer of an unfinished file
+ * costs no file descriptor while its handle is evicted. The file is created by the first writer under a lock of
+ * its own, no monitor is held during file I/O, so a virtual thread never pins its carrier here.
+ */
 public class MyFileWriter {
-	private static final Map<File, MyFileWriter> instances = new HashMap<>();
+	private static final Map<File, MyFileWriter> instances = new ConcurrentHashMap<>();
+	private static final FileHandleCache handles = new FileHandleCache(PropertiesManager.getInstance().getMaxOpenFiles());
+	private static final LatencyHistogram writeLatency = Metrics.getInstance().histogram("client_disk_write");
 	
-	private final RandomAccessFile raf;
+	private final File file;
+	private final ReentrantLock openLock = new ReentrantLock();
+	private volatile boolean opened;
 	
-	private MyFileWriter(File file, long fileSize) throws IOException {
-		raf = new RandomAccessFile(file,"rw");
-		raf.setLength(fileSize);
+	private MyFileWriter(File file) {
+		this.file = file;
 	}
 	
-	public synchronized static MyFileWriter getInstance(File file, long fileSize) throws IOException {
-		MyFileWriter instance = instances.get(file);
-		if (instance == null) {
-			instance = new MyFileWriter(file,fileSize);
-			instances.put(file, instance);
-		}
+	public static MyFileWriter getInstance(File file, long fileSize) throws IOException {
+		MyFileWriter instance = instances.computeIfAbsent(file, MyFileWriter::new);
+		instance.open(fileSize);
 		return instance;
 	}
+
+	private void open(long fileSize) throws IOException {
+		if (opened) {
+			return;
+		}
+		openLock.lock();
+		try {
+			if (!opened) {
+				RandomAccessFile raf = new RandomAccessFile(file,"rw");
+				FileHandleCache.Handle handle;
+				try {
+					raf.setLength(fileSize);
+					handle = handles.put(file, raf.getChannel());
+				} catch (IOException e) {
+					raf.close();
+					throw e;
+				}
+				if (handle.channel != raf.getChannel()) { // the cache still holds a handle of the file, such as one of an earlier writer
+					raf.close();
+				}
+				handle.release();
+				opened = true;
+			}
+		} finally {
+			openLock.unlock();
+		}
+	}
 	
-	public synchronized void write(long fileOffset, byte[] data, int dataOffset, int dataLength) throws IOException {
-		raf.seek(fileOffset);
-		raf.write(data, dataOffset, dataLength);
-		
+	public static FileHandleCache getHandleCache() {
+		return handles;
 	}
 	
-	public void close() {
+	/**
+	 * Writes all remaining bytes of the buffer at the given file offset, ideally from a direct buffer.
+	 */
+	public void write(long fileOffset, ByteBuffer data) throws IOException {
+		long start = System.nanoTime();
+		FileHandleCache.Handle handle = handles.acquire(file);
 		try {
-			raf.close();
-		} catch (IOException e) {
-			e.printStackTrace();
+			long position = fileOffset;
+			while (data.hasRemaining()) {
+				position += handle.channel.write(data, position);
+			}
+		} finally {
+			handle.release();
+			writeLatency.recordSince(start);
+		}
+	}
+	
+	public void write(long fileOffset, byte[] data, int dataOffset, int dataLength) throws IOException {
+		write(fileOffset, ByteBuffer.wrap(data, dataOffset, dataLength));
+	}
+	
+	public void close() {
+		instances.remove(file);
+		handles.invalidate(file);
+	}
+	
+	/**
+	 * Closes the completed file and gives it the modification time of the source, a later sync then
+	 * recognizes it as copied. 0 means the time is not known, times before 1970 are negative.
+	 */
+	public void close(long lastModified) throws IOException {
+		close();
+		if (lastModified != 0) {
+			Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(lastModified));
 		}
 	}
 }
@@ -0,0 +1,116 @@
+package sk.upjs.kopr.copy.client;
+
+import sk.upjs.kopr.copy.FileInfo;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+
+/**
+ * Order in which the data sockets of a client request the planned work. The sockets take the head of the queue, so
+ * the policy decides which file is left for the end of the copy, when a single socket may still be busy while the
+ * others have nothing left to request.
+ */
+public enum SchedulingPolicy {
+
+    /**
+     * In the order the server listed the files, directory by directory.
+     */
+    FIFO,
+
+    /**
+     * Longest ranges first, so the sockets end with the small ones and finish at about the same time.
+     */
+    LARGEST_FIRST,
+
+    /**
+     * Shortest ranges first, so most files are complete and usable as soon as possible.
+     */
+    SMALLEST_FIRST,
+
+    /**
+     * Files matching an earlier glob of {@link ClientConfig#schedulePriorities()} first, then the rest; largest first
+     * within the same priority.
+     */
+    PRIORITY;
+
+    public static SchedulingPolicy fromString(String value) {
+        if (value == null || value.isBlank()) {
+            return FIFO;
+        }
+        return switch (value.trim().toLowerCase()) {
+            case "largest", "largest_first", "lpt" -> LARGEST_FIRST;
+            case "smallest", "smallest_first" -> SMALLEST_FIRST;
+            case "priority", "glob" -> PRIORITY;
+            default -> FIFO;
+        };
+    }
+
+    /**
+     * @param files      the work planned so far
+     * @param priorities glob patterns of {@link #PRIORITY}, matched against the names relative to {@code directory}
+     * @param directory  directory on the server the names in the file list start with
+     * @return the queue the data sockets take their work from
+     */
+    public BlockingQueue<FileInfo> newQueue(Collection<FileInfo> files, List<String> priorities, String directory) {
+        Comparator<FileInfo> largestFirst = Comparator.comparingLong(SchedulingPolicy::remaining).reversed();
+        Comparator<FileInfo> order = switch (this) {
+            case FIFO -> null;
+            case LARGEST_FIRST -> largestFirst;
+            case SMALLEST_FIRST -> Comparator.comparingLong(SchedulingPolicy::remaining);
+            case PRIORITY -> Comparator.comparingInt(priority(priorities, directory)::of).thenComparing(largestFirst);
+        };
+        if (order == null) {
+            return new LinkedBlockingQueue<>(files);
+        }
+        // a priority queue is not stable, equal ranges go alphabetically by path and the pieces of a file by offset
+        BlockingQueue<FileInfo> queue = new PriorityBlockingQueue<>(Math.max(1, files.size()),
+                order.thenComparing(f -> f.fileName).thenComparingLong(f -> f.offset));
+        queue.addAll(files);
+        return queue;
+    }
+
+    private static long remaining(FileInfo fileInfo) {
+        return fileInfo.size - fileInfo.offset;
+    }
+
+    private static Priority priority(List<String> priorities, String directory) {
+        List<PathMatcher> matchers = priorities.stream()
+                .map(glob -> FileSystems.getDefault().getPathMatcher("glob:" + glob))
+                .toList();
+        return new Priority(matchers, Path.of(directory), new ConcurrentHashMap<>());
+    }
+
+    /**
+     * Index of the first glob matching a file, a bundle gets the best of its files. The queue compares a range many
+     * times, the globs are matched once per file.
+     */
+    private record Priority(List<PathMatcher> matchers, Path directory, Map<String, Integer> matched) {
+        int of(FileInfo fileInfo) {
+            int best = matchers.size();
+            for (FileInfo part : fileInfo.parts()) {
+                best = Math.min(best, matched.computeIfAbsent(part.fileName, this::match));
+            }
+            return best;
+        }
+
+        private int match(String fileName) {
+            Path file = Path.of(fileName);
+            Path relative = file.startsWith(directory) ? directory.relativize(file) : file;
+            for (int i = 0; i < matchers.size(); i++) {
+                if (matchers.get(i).matches(relative)) {
+                    return i;
+                }
+            }
+            return matchers.size();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package sk.upjs.kopr.copy.client;
+
+/**
+ * Picks the number of data sockets by hill climbing on the measured throughput. Every sample is compared with the
+ * one taken at the previous count: while the throughput grows the tuner keeps moving the same way with doubling
+ * steps, a drop sends it back with a single step and a change within {@link #TOLERANCE} holds the count. A held
+ * count is probed again after {@link #PROBE_AFTER} samples, so the tuner follows a link or a disk whose best count
+ * changes during the copy.
+ */
+class SocketTuner {
+
+    static final double TOLERANCE = 0.05;
+    static final int PROBE_AFTER = 5;
+
+    private final int minSockets;
+    private final int maxSockets;
+    private int current;
+    private int step = 1;
+    private int held;
+    private double lastThroughput = -1;
+
+    SocketTuner(int initial, int minSockets, int maxSockets) {
+        this.minSockets = Math.max(1, minSockets);
+        this.maxSockets = Math.max(this.minSockets, maxSockets);
+        this.current = clamp(initial);
+    }
+
+    int getCurrent() {
+        return current;
+    }
+
+    /**
+     * @param throughput bytes per second received with {@link #getCurrent()} sockets since the last sample
+     * @return the number of sockets for the next interval
+     */
+    int next(double throughput) {
+        if (lastThroughput < 0) {
+            lastThroughput = throughput;
+            return move(step);
+        }
+        double gain = lastThroughput == 0 ? (throughput > 0 ? 1 : 0) : (throughput - lastThroughput) / lastThroughput;
+        lastThroughput = throughput;
+        if (gain > TOLERANCE) {
+            held = 0;
+            step = step * 2;
+            return move(step);
+        }
+        if (gain < -TOLERANCE) {
+            held = 0;
+            step = step > 0 ? -1 : 1;
+            return move(step);
+        }
+        if (++held >= PROBE_AFTER) {
+            held = 0;
+            step = Integer.signum(step);
+            return move(step);
+        }
+        return current;
+    }
+
+    private int move(int by) {
+        int next = clamp(current + by);
+        if (next == current) {
+            // at a bound the only way left is back
+            step = by > 0 ? -1 : 1;
+        }
+        current = next;
+        return current;
+    }
+
+    private int clamp(int sockets) {
+        return Math.max(minSockets, Math.min(maxSockets, sockets));
+    }
+}
@@ -0,0 +1,174 @@
+package sk.upjs.kopr.copy.client;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the received bytes and files. The receive tasks only add to striped counters, a sampler publishes a
+ * {@link TransferSnapshot} with the smoothed throughput and ETA every {@code intervalMillis}. Every subscriber
+ * buffers a single snapshot, a subscriber that did not take it yet misses the newer ones, so a slow subscriber
+ * never holds up the transfer.
+ */
+public class TransferProgress {
+
+    /**
+     * Time constant of the exponentially weighted throughput, in milliseconds.
+     */
+    private static final double SMOOTHING_MILLIS = 3000;
+    private static final long FINAL_SNAPSHOT_TIMEOUT_MILLIS = 1000;
+
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder files = new LongAdder();
+    private final long intervalMillis;
+
+    private final ExecutorService delivery = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "progress-delivery");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final SubmissionPublisher<TransferSnapshot> publisher = new SubmissionPublisher<>(delivery, 1);
+    private final CompletableFuture<TransferSnapshot> completion = new CompletableFuture<>();
+
+    private volatile long totalBytes;
+    private volatile long totalFiles;
+
+    private ScheduledExecutorService sampler;
+    private ScheduledFuture<?> sampling;
+    private long lastBytes;
+    private long lastNanos;
+    private double bytesPerSecond;
+
+    public TransferProgress(long intervalMillis) {
+        this.intervalMillis = Math.max(1, intervalMillis);
+    }
+
+    public void addBytes(long length) {
+        bytes.add(length);
+    }
+
+    public void addFile() {
+        files.increment();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    public long getFiles() {
+        return files.sum();
+    }
+
+    /**
+     * Sets the size of the whole copy, it may grow while the server still searches.
+     */
+    public void setTotals(long totalFiles, long totalBytes) {
+        this.totalFiles = totalFiles;
+        this.totalBytes = totalBytes;
+    }
+
+    public Flow.Publisher<TransferSnapshot> publisher() {
+        return publisher;
+    }
+
+    /**
+     * @return completes with the last snapshot once the copy is finished, or exceptionally if it failed
+     */
+    public CompletableFuture<TransferSnapshot> completion() {
+        return completion;
+    }
+
+    /**
+     * Sets the counters to what was copied before this transfer and starts sampling if it does not run yet.
+     */
+    public synchronized void start(long copiedBytes, long copiedFiles) {
+        bytes.reset();
+        bytes.add(copiedBytes);
+        files.reset();
+        files.add(copiedFiles);
+        lastBytes = copiedBytes;
+        lastNanos = System.nanoTime();
+        bytesPerSecond = 0;
+        if (sampler == null) {
+            sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "progress-sampler");
+                thread.setDaemon(true);
+                return thread;
+            });
+            sampling = sampler.scheduleAtFixedRate(this::sample, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Publishes the final counts and completes the subscribers.
+     */
+    public void complete() {
+        stopSampling();
+        TransferSnapshot last = new TransferSnapshot(bytes.sum(), files.sum(), totalBytes, totalFiles, Math.round(bytesPerSecond), 0);
+        // unlike the samples, the last snapshot waits a while for a subscriber that is behind
+        publisher.offer(last, FINAL_SNAPSHOT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS, (subscriber, snapshot) -> false);
+        publisher.close();
+        delivery.shutdown();
+        completion.complete(last);
+    }
+
+    /**
+     * Completes the subscribers with the failure of the copy.
+     */
+    public void fail(Throwable cause) {
+        stopSampling();
+        publisher.closeExceptionally(cause);
+        delivery.shutdown();
+        completion.completeExceptionally(cause);
+    }
+
+    private void stopSampling() {
+        ScheduledExecutorService stopped;
+        synchronized (this) {
+            stopped = sampler;
+            sampler = null;
+            if (stopped != null) {
+                sampling.cancel(false);
+                stopped.shutdown();
+            }
+        }
+        if (stopped != null) {
+            try {
+                stopped.awaitTermination(intervalMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void sample() {
+        long copiedBytes = bytes.sum();
+        long copiedFiles = files.sum();
+        long rate;
+        long secondsLeft;
+        synchronized (this) {
+            long now = System.nanoTime();
+            double elapsedMillis = (now - lastNanos) / 1e6;
+            if (elapsedMillis <= 0) {
+                return;
+            }
+            double current = (copiedBytes - lastBytes) * 1000 / elapsedMillis;
+            double weight = 1 - Math.exp(-elapsedMillis / SMOOTHING_MILLIS);
+            bytesPerSecond = bytesPerSecond == 0 ? current : bytesPerSecond + weight * (current - bytesPerSecond);
+            lastBytes = copiedBytes;
+            lastNanos = now;
+            rate = Math.max(0, Math.round(bytesPerSecond));
+            long left = totalBytes - copiedBytes;
+            secondsLeft = rate > 0 ? Math.max(0, left) / rate : -1;
+        }
+        // a subscriber still holding the previous snapshot drops this one, the next sample is newer anyway
+        publisher.offer(new TransferSnapshot(copiedBytes, copiedFiles, totalBytes, totalFiles, rate, secondsLeft),
+                (subscriber, snapshot) -> false);
+    }
+}
@@ -0,0 +1,10 @@
+package sk.upjs.kopr.copy.client;
+
+/**
+ * One sample of the progress of a copy, as published by {@link Client#progress()}.
+ *
+ * @param bytesPerSecond throughput smoothed over a few seconds
+ * @param etaSeconds     estimated seconds left, -1 while unknown
+ */
+public record TransferSnapshot(long bytes, long files, long totalBytes, long totalFiles, long bytesPerSecond, long etaSeconds) {
+}
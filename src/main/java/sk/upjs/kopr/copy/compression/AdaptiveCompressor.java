@@ -0,0 +1,62 @@
+package sk.upjs.kopr.copy.compression;
+
+import sk.upjs.kopr.copy.protocol.FrameWriter;
+
+import java.io.IOException;
+
+/**
+ * Decides for every DATA frame of one socket whether it is compressed. The first frame of every range is
+ * compressed as a sample; if it does not shrink below {@link #MAX_RATIO} of its size, the range is most likely
+ * already compressed (archives, media) and the next {@link #RAW_RUN} frames are sent raw before another sample.
+ */
+public class AdaptiveCompressor implements AutoCloseable {
+
+    private static final double MAX_RATIO = 0.9;
+    private static final int RAW_RUN = 64;
+
+    private final Codec codec;
+    private final CompressionStats stats = new CompressionStats();
+    private byte[] compressed = new byte[0];
+    private int rawFrames;
+
+    public AdaptiveCompressor(Codec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Starts sampling again, the next range may hold a different kind of data.
+     */
+    public void startRange() {
+        rawFrames = 0;
+    }
+
+    public void writeData(FrameWriter out, int tag, byte[] data, int offset, int length) throws IOException {
+        if (length == 0 || rawFrames > 0) {
+            rawFrames = Math.max(0, rawFrames - 1);
+            out.writeData(tag, data, offset, length);
+            stats.raw(length);
+            return;
+        }
+        int bound = codec.maxCompressedLength(length);
+        if (compressed.length < bound) {
+            compressed = new byte[bound];
+        }
+        long start = System.nanoTime();
+        int compressedLength = codec.compress(data, offset, length, compressed);
+        stats.coded(length, compressedLength, System.nanoTime() - start);
+        // the frame is in the codec's history by now, it has to be sent compressed even if it did not shrink
+        out.writeCompressed(tag, length, out.checksum(data, offset, length), compressed, 0, compressedLength);
+        if (compressedLength > length * MAX_RATIO) {
+            rawFrames = RAW_RUN;
+        }
+    }
+
+    public CompressionStats stats() {
+        return stats;
+    }
+
+    @Override
+    public void close() {
+        codec.close();
+    }
+}
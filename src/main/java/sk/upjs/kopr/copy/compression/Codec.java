@@ -0,0 +1,32 @@
+package sk.upjs.kopr.copy.compression;
+
+import java.io.IOException;
+
+/**
+ * Compresses the payloads of one data socket. A codec may keep state between frames: the frames of a socket
+ * are decompressed in the order they were compressed, so a frame can refer to data of the earlier ones.
+ * Frames sent uncompressed do not pass through the codec.
+ */
+public interface Codec extends AutoCloseable {
+
+    /**
+     * @return upper bound of the compressed size of {@code length} bytes
+     */
+    int maxCompressedLength(int length);
+
+    /**
+     * Compresses the input completely, the receiver can decompress it without any later frame.
+     *
+     * @param out has room for {@link #maxCompressedLength(int)} bytes
+     * @return number of compressed bytes written to {@code out}
+     */
+    int compress(byte[] data, int offset, int length, byte[] out) throws IOException;
+
+    /**
+     * Decompresses one frame into exactly {@code rawLength} bytes at the start of {@code out}.
+     */
+    void decompress(byte[] data, int offset, int length, byte[] out, int rawLength) throws IOException;
+
+    @Override
+    void close();
+}
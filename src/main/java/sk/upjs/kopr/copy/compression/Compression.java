@@ -0,0 +1,39 @@
+package sk.upjs.kopr.copy.compression;
+
+/**
+ * Codec applied to the DATA payloads of the data sockets. A new codec is plugged in by adding a constant here.
+ */
+public enum Compression {
+
+    /** Payloads travel as they are. */
+    NONE,
+
+    /** Payloads are compressed with {@link DeflateCodec}. */
+    DEFLATE;
+
+    /**
+     * @param level compression level of the codec, ignored when decompressing
+     * @return a codec for one socket, {@code null} for {@link #NONE}
+     */
+    public Codec newCodec(int level) {
+        return switch (this) {
+            case NONE -> null;
+            case DEFLATE -> new DeflateCodec(level);
+        };
+    }
+
+    public static Compression fromString(String value) {
+        if (value == null || value.isBlank()) {
+            return NONE;
+        }
+        return switch (value.trim().toLowerCase()) {
+            case "deflate", "zip" -> DEFLATE;
+            default -> NONE;
+        };
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase();
+    }
+}
@@ -0,0 +1,48 @@
+package sk.upjs.kopr.copy.compression;
+
+/**
+ * Counts the payload of one data socket: frames that went through the codec with their size before and after
+ * and the time spent in it, and frames sent uncompressed. Used by a single thread.
+ */
+public class CompressionStats {
+
+    private long codecFrames;
+    private long codecRawBytes;
+    private long codecBytes;
+    private long codecNanos;
+    private long rawFrames;
+    private long rawBytes;
+
+    public void coded(int rawLength, int length, long nanos) {
+        codecFrames++;
+        codecRawBytes += rawLength;
+        codecBytes += length;
+        codecNanos += nanos;
+    }
+
+    public void raw(int length) {
+        rawFrames++;
+        rawBytes += length;
+    }
+
+    /**
+     * @return bytes on the wire divided by the bytes of the files, 1 when nothing was compressed
+     */
+    public double ratio() {
+        long total = codecRawBytes + rawBytes;
+        return total == 0 ? 1 : (double) (codecBytes + rawBytes) / total;
+    }
+
+    /**
+     * @return uncompressed bytes the codec processed per second of its own time, in MB/s
+     */
+    public double codecThroughput() {
+        return codecNanos == 0 ? 0 : codecRawBytes * 1000.0 / codecNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d frames coded (%d -> %d bytes), %d frames raw (%d bytes), ratio %.3f, codec %.1f MB/s",
+                codecFrames, codecRawBytes, codecBytes, rawFrames, rawBytes, ratio(), codecThroughput());
+    }
+}
@@ -0,0 +1,67 @@
+package sk.upjs.kopr.copy.compression;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * One raw deflate stream per socket. Every frame ends with a sync flush, so it can be inflated as soon as it
+ * arrives while the window of the stream still covers the frames before it.
+ */
+public class DeflateCodec implements Codec {
+
+    private final Deflater deflater;
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] overflow = new byte[1];
+
+    public DeflateCodec(int level) {
+        deflater = new Deflater(level, true);
+    }
+
+    @Override
+    public int maxCompressedLength(int length) {
+        // stored blocks add 5 bytes per 16 kB, the flush marker and block headers stay within the constant
+        return length + (length >> 8) + 64;
+    }
+
+    @Override
+    public int compress(byte[] data, int offset, int length, byte[] out) throws IOException {
+        deflater.setInput(data, offset, length);
+        int written = deflater.deflate(out, 0, out.length, Deflater.SYNC_FLUSH);
+        if (written == out.length) {
+            throw new IOException("Compressed frame exceeds " + out.length + " bytes");
+        }
+        return written;
+    }
+
+    @Override
+    public void decompress(byte[] data, int offset, int length, byte[] out, int rawLength) throws IOException {
+        inflater.setInput(data, offset, length);
+        try {
+            int produced = 0;
+            while (produced < rawLength) {
+                int n = inflater.inflate(out, produced, rawLength - produced);
+                if (n == 0 && (inflater.needsInput() || inflater.finished() || inflater.needsDictionary())) {
+                    throw new ZipException("Compressed frame ended after " + produced + " of " + rawLength + " bytes");
+                }
+                produced += n;
+            }
+            // consume the flush marker, input left in the inflater would be lost with the next frame
+            while (!inflater.needsInput() && !inflater.finished() && !inflater.needsDictionary()) {
+                if (inflater.inflate(overflow) > 0) {
+                    throw new ZipException("Compressed frame is longer than " + rawLength + " bytes");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("Corrupted compressed frame: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        deflater.end();
+        inflater.end();
+    }
+}
@@ -0,0 +1,85 @@
+package sk.upjs.kopr.copy.delta;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Weak and strong checksums of the blocks of one range of the client's copy. All blocks have
+ * {@link #blockSize} bytes except the last one, which ends with the range.
+ */
+public class BlockSignatures {
+
+    public static final int STRONG_LENGTH = 16;
+    private static final int MIN_BLOCK_SIZE = 2048;
+    private static final int MAX_BLOCK_SIZE = 131072;
+
+    public final int blockSize;
+    public final int lastBlockLength;
+    public final int[] weak;
+    public final byte[][] strong;
+
+    public BlockSignatures(int blockSize, int lastBlockLength, int[] weak, byte[][] strong) {
+        this.blockSize = blockSize;
+        this.lastBlockLength = lastBlockLength;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    public int count() {
+        return weak.length;
+    }
+
+    public int blockLength(int index) {
+        return index == weak.length - 1 ? lastBlockLength : blockSize;
+    }
+
+    /**
+     * The square root of the range length, as rsync chooses it: larger blocks mean fewer signatures,
+     * smaller ones find more matches.
+     */
+    public static int blockSize(long rangeLength) {
+        long size = (long) Math.sqrt(rangeLength);
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size)) & ~7;
+    }
+
+    /**
+     * Computes the signatures of the bytes {@code offset..end} of the file.
+     */
+    public static BlockSignatures compute(FileChannel file, long offset, long end, int blockSize) throws IOException {
+        long length = Math.max(0, end - offset);
+        int count = (int) ((length + blockSize - 1) / blockSize);
+        int[] weak = new int[count];
+        byte[][] strong = new byte[count][];
+
+        MessageDigest md5 = md5();
+        byte[] block = new byte[blockSize];
+        ByteBuffer buffer = ByteBuffer.wrap(block);
+        int blockLength = 0;
+        for (int i = 0; i < count; i++) {
+            long position = offset + (long) i * blockSize;
+            blockLength = (int) Math.min(blockSize, end - position);
+            buffer.clear().limit(blockLength);
+            while (buffer.hasRemaining()) {
+                if (file.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("Copy ended at " + (position + buffer.position()));
+                }
+            }
+            weak[i] = RollingChecksum.of(block, 0, blockLength);
+            md5.update(block, 0, blockLength);
+            strong[i] = md5.digest();
+        }
+        return new BlockSignatures(blockSize, blockLength, weak, strong);
+    }
+
+    static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
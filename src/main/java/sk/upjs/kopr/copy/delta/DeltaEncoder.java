@@ -0,0 +1,153 @@
+package sk.upjs.kopr.copy.delta;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Describes a range of the server's file by the blocks the client already has and the literal bytes
+ * in between. A window of one block slides over the range; where its weak checksum and then its MD5
+ * equal a block of the client, the block is referenced, otherwise the window moves by one byte.
+ */
+public class DeltaEncoder {
+
+    public static final int MAX_LITERAL = 65536;
+    private static final int READ_SIZE = 65536;
+
+    public interface Output {
+        void literal(byte[] data, int offset, int length) throws IOException;
+
+        void block(int index) throws IOException;
+    }
+
+    private final FileChannel file;
+    private final long end;
+    private final BlockSignatures signatures;
+    private final Map<Integer, List<Integer>> blocksByWeak = new HashMap<>();
+    private final MessageDigest md5 = BlockSignatures.md5();
+
+    private final byte[] buffer;
+    private long filePosition;
+    private int limit;
+    private int position;
+    private int literalStart;
+
+    public DeltaEncoder(FileChannel file, long offset, long end, BlockSignatures signatures) {
+        this.file = file;
+        this.end = end;
+        this.signatures = signatures;
+        this.filePosition = offset;
+        this.buffer = new byte[MAX_LITERAL + 2 * signatures.blockSize + READ_SIZE];
+        for (int i = 0; i < signatures.count(); i++) {
+            blocksByWeak.computeIfAbsent(signatures.weak[i], weak -> new ArrayList<>()).add(i);
+        }
+    }
+
+    /**
+     * @throws IOException          of the output
+     * @throws UncheckedIOException if the file cannot be read, so the caller tells its failures from those of the output
+     */
+    public void encode(Output out) throws IOException {
+        int blockSize = signatures.blockSize;
+        RollingChecksum checksum = new RollingChecksum();
+        boolean fresh = true;
+        while (true) {
+            fill(blockSize + 1);
+            int available = limit - position;
+            int length = Math.min(blockSize, available);
+            if (length == 0) {
+                break;
+            }
+            if (fresh) {
+                checksum.reset(buffer, position, length);
+                fresh = false;
+            }
+
+            int block = find(checksum.value(), length);
+            if (block >= 0) {
+                flushLiteral(out);
+                out.block(block);
+                position += length;
+                literalStart = position;
+                fresh = true;
+                continue;
+            }
+
+            if (available > length) {
+                checksum.roll(buffer[position], buffer[position + length]);
+            } else {
+                checksum.rollOut(buffer[position]);
+            }
+            position++;
+            if (position - literalStart >= MAX_LITERAL) {
+                flushLiteral(out);
+            }
+        }
+        flushLiteral(out);
+    }
+
+    private int find(int weak, int length) {
+        List<Integer> candidates = blocksByWeak.get(weak);
+        if (candidates == null) {
+            return -1;
+        }
+        byte[] strong = null;
+        for (int index : candidates) {
+            if (signatures.blockLength(index) != length) {
+                continue;
+            }
+            if (strong == null) {
+                md5.update(buffer, position, length);
+                strong = md5.digest();
+            }
+            if (Arrays.equals(strong, signatures.strong[index])) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private void flushLiteral(Output out) throws IOException {
+        if (position > literalStart) {
+            out.literal(buffer, literalStart, position - literalStart);
+            literalStart = position;
+        }
+    }
+
+    /**
+     * Reads until {@code need} bytes follow the window position or the range ends. The unsent literal
+     * is kept at the start of the buffer.
+     */
+    private void fill(int need) {
+        if (limit - position >= need || filePosition >= end) {
+            return;
+        }
+        if (buffer.length - position < need + READ_SIZE) {
+            System.arraycopy(buffer, literalStart, buffer, 0, limit - literalStart);
+            limit -= literalStart;
+            position -= literalStart;
+            literalStart = 0;
+        }
+        try {
+            while (limit - position < need && filePosition < end) {
+                int length = (int) Math.min(buffer.length - limit, end - filePosition);
+                int read = file.read(ByteBuffer.wrap(buffer, limit, length), filePosition);
+                if (read < 0) {
+                    throw new EOFException("File ended at " + filePosition + " while sending a delta");
+                }
+                limit += read;
+                filePosition += read;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
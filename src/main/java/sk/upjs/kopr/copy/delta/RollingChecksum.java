@@ -0,0 +1,52 @@
+package sk.upjs.kopr.copy.delta;
+
+/**
+ * The weak block checksum of rsync. Moving the window by one byte costs a few additions instead of
+ * summing the whole block again.
+ */
+public class RollingChecksum {
+
+    private int a;
+    private int b;
+    private int length;
+
+    public void reset(byte[] data, int offset, int length) {
+        a = 0;
+        b = 0;
+        this.length = length;
+        for (int i = 0; i < length; i++) {
+            int x = data[offset + i] & 0xFF;
+            a += x;
+            b += (length - i) * x;
+        }
+    }
+
+    /**
+     * Moves the window one byte forward.
+     */
+    public void roll(byte out, byte in) {
+        int x = out & 0xFF;
+        a += (in & 0xFF) - x;
+        b += a - length * x;
+    }
+
+    /**
+     * Drops the first byte of the window, used at the end of the data where no byte follows.
+     */
+    public void rollOut(byte out) {
+        int x = out & 0xFF;
+        a -= x;
+        b -= length * x;
+        length--;
+    }
+
+    public int value() {
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    public static int of(byte[] data, int offset, int length) {
+        RollingChecksum checksum = new RollingChecksum();
+        checksum.reset(data, offset, length);
+        return checksum.value();
+    }
+}
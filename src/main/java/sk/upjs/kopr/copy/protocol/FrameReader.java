@@ -0,0 +1,451 @@
+package sk.upjs.kopr.copy.protocol;
+
+import sk.upjs.kopr.copy.FileBundle;
+import sk.upjs.kopr.copy.FileInfo;
+import sk.upjs.kopr.copy.TransferMode;
+import sk.upjs.kopr.copy.compression.Codec;
+import sk.upjs.kopr.copy.compression.Compression;
+import sk.upjs.kopr.copy.compression.CompressionStats;
+import sk.upjs.kopr.copy.delta.BlockSignatures;
+import sk.upjs.kopr.exceptions.RemoteFailureException;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Reads protocol frames written by {@link FrameWriter}. Malformed input ends with a {@link ProtocolException}.
+ * <p>
+ * Frame headers are read through an internal buffer. When the reader is given the socket channel,
+ * payloads larger than what is already buffered are read from the channel straight into the caller's buffer.
+ * <p>
+ * With a codec set, COMPRESSED frames are decompressed when their header is read and their payload is then
+ * served by {@code readFully} like the payload of a DATA frame.
+ */
+public class FrameReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private final InputStream in;
+    private final ReadableByteChannel channel;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+
+    private int checksum;
+
+    private Codec codec;
+    private CompressionStats stats;
+    private byte[] compressed = new byte[0];
+    private byte[] decompressed = new byte[0];
+    private int decompressedPosition;
+    private int decompressedLimit;
+
+    public FrameReader(InputStream in) {
+        this(in, (ReadableByteChannel) null);
+    }
+
+    public FrameReader(InputStream in, ReadableByteChannel channel) {
+        this.in = in;
+        this.channel = channel;
+    }
+
+    /**
+     * @param prefetched bytes of the stream that were already read, such as the start of the first frame
+     */
+    public FrameReader(InputStream in, ByteBuffer prefetched) {
+        this(in, (ReadableByteChannel) null);
+        limit = prefetched.remaining();
+        prefetched.get(buffer, 0, limit);
+    }
+
+    public MessageType readType() throws IOException {
+        int code = readByte();
+        MessageType type = MessageType.fromCode(code);
+        if (type == null) {
+            throw new ProtocolException("Unknown message type " + code);
+        }
+        if (type == MessageType.ERROR) {
+            throw new RemoteFailureException("Remote side failed: " + readString());
+        }
+        return type;
+    }
+
+    public void expect(MessageType expected) throws IOException {
+        MessageType type = readType();
+        if (type != expected) {
+            throw new ProtocolException("Expected " + expected + " but received " + type);
+        }
+    }
+
+    public Hello readHello() throws IOException {
+        expect(MessageType.HELLO);
+        if (readInt() != Protocol.MAGIC) {
+            throw new ProtocolException("Not a kopr client");
+        }
+        int version = readVarInt();
+        if (version != Protocol.VERSION) {
+            // the rest of the frame may differ, the caller only reports the version
+            return new Hello(version, 0, null, true, null, 0, "");
+        }
+        int numberOfSockets = readVarInt();
+        int mode = readByte();
+        if (mode >= TransferMode.values().length) {
+            throw new ProtocolException("Unknown transfer mode " + mode);
+        }
+        boolean zeroCopyChecksums = readByte() != 0;
+        int compression = readByte();
+        if (compression >= Compression.values().length) {
+            throw new ProtocolException("Unknown compression " + compression);
+        }
+        int compressionLevel = readVarInt();
+        return new Hello(version, numberOfSockets, TransferMode.values()[mode], zeroCopyChecksums, Compression.values()[compression], compressionLevel, readString());
+    }
+
+    public long readSession() throws IOException {
+        expect(MessageType.SESSION);
+        return readLong();
+    }
+
+    /**
+     * Accepts COMPRESSED frames decompressed by the given codec from now on.
+     */
+    public void setCodec(Codec codec) {
+        this.codec = codec;
+        this.stats = new CompressionStats();
+    }
+
+    /**
+     * @return counters of the received payload, {@code null} without a codec
+     */
+    public CompressionStats getCompressionStats() {
+        return stats;
+    }
+
+    public Totals readTotals() throws IOException {
+        expect(MessageType.TOTALS);
+        return readTotalsBody();
+    }
+
+    /**
+     * Reads the body of TOTALS or SCAN_COMPLETE, the message type has to be consumed already.
+     */
+    public Totals readTotalsBody() throws IOException {
+        return new Totals(readVarInt(), readVarLong());
+    }
+
+    /**
+     * Reads the body of a file list, the message type has to be consumed already.
+     */
+    public BlockingQueue<FileInfo> readFileList() throws IOException {
+        int count = readCount("File list");
+        BlockingQueue<FileInfo> files = new LinkedBlockingQueue<>();
+        for (int i = 0; i < count; i++) {
+            files.add(readFileInfo());
+        }
+        return files;
+    }
+
+    /**
+     * Reads the body of a MANIFEST batch, the message type has to be consumed already.
+     */
+    public List<ManifestEntry> readManifest() throws IOException {
+        int count = readCount("Manifest batch");
+        List<ManifestEntry> entries = new ArrayList<>(Math.min(count, Protocol.PREALLOCATED_ENTRIES));
+        for (int i = 0; i < count; i++) {
+            entries.add(new ManifestEntry(readString(), readVarLong(), readSignedVarLong()));
+        }
+        return entries;
+    }
+
+    public FileInfo readFileInfo() throws IOException {
+        int kind = readByte();
+        if (kind == Protocol.KIND_RANGE) {
+            return readRange();
+        }
+        if (kind == Protocol.KIND_BUNDLE) {
+            int count = readCount("Bundle");
+            List<FileInfo> files = new ArrayList<>(Math.min(count, Protocol.PREALLOCATED_ENTRIES));
+            for (int i = 0; i < count; i++) {
+                files.add(readRange());
+            }
+            return new FileBundle(files);
+        }
+        throw new ProtocolException("Unknown file entry kind " + kind);
+    }
+
+    /**
+     * Reads the header of the next DATA frame of the response with the given tag.
+     *
+     * @return length of the payload that follows
+     */
+    public int readDataHeader(int tag) throws IOException {
+        MessageType type = readType();
+        if (type != MessageType.DATA && type != MessageType.COMPRESSED) {
+            throw new ProtocolException("Expected DATA but received " + type);
+        }
+        int frameTag = readVarInt();
+        if (frameTag != tag) {
+            throw new ProtocolException("Expected data for request " + tag + " but received " + frameTag);
+        }
+        return readDataLength(type);
+    }
+
+    /**
+     * @return CRC32C the sender computed over the uncompressed payload of the last DATA or COMPRESSED frame
+     */
+    public int getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Reads the rest of the header of a DATA or COMPRESSED frame whose type and tag were already read.
+     * A compressed payload is decompressed at once.
+     *
+     * @return length of the uncompressed payload that follows
+     */
+    public int readDataLength(MessageType type) throws IOException {
+        if (type == MessageType.DATA) {
+            int length = readVarInt();
+            checksum = readInt();
+            if (stats != null) {
+                stats.raw(length);
+            }
+            return length;
+        }
+        if (type != MessageType.COMPRESSED || codec == null) {
+            throw new ProtocolException("Unexpected " + type + " instead of data");
+        }
+        if (decompressedPosition < decompressedLimit) {
+            throw new ProtocolException("Compressed frame before the previous one was read");
+        }
+        int rawLength = readVarInt();
+        int length = readVarInt();
+        checksum = readInt();
+        if (rawLength > Protocol.MAX_FRAME_SIZE || length > codec.maxCompressedLength(Protocol.MAX_FRAME_SIZE)) {
+            throw new ProtocolException("Compressed frame of " + length + " bytes for " + rawLength + " bytes");
+        }
+        if (compressed.length < length) {
+            compressed = new byte[length];
+        }
+        if (decompressed.length < rawLength) {
+            decompressed = new byte[rawLength];
+        }
+        readFully(compressed, 0, length);
+        long start = System.nanoTime();
+        codec.decompress(compressed, 0, length, decompressed, rawLength);
+        stats.coded(rawLength, length, System.nanoTime() - start);
+        decompressedPosition = 0;
+        decompressedLimit = rawLength;
+        return rawLength;
+    }
+
+    /**
+     * Reads the signatures following the range of a DELTA_REQUEST.
+     */
+    public BlockSignatures readBlockSignatures() throws IOException {
+        int blockSize = readVarInt();
+        int lastBlockLength = readVarInt();
+        int count = readCount("Block signatures");
+        if (blockSize <= 0 || blockSize > Protocol.MAX_FRAME_SIZE || lastBlockLength > blockSize) {
+            throw new ProtocolException("Invalid block size " + blockSize);
+        }
+        int[] weak = new int[Math.min(count, Protocol.PREALLOCATED_ENTRIES)];
+        byte[][] strong = new byte[weak.length][];
+        for (int i = 0; i < count; i++) {
+            if (i == weak.length) {
+                weak = Arrays.copyOf(weak, grow(weak.length, count));
+                strong = Arrays.copyOf(strong, weak.length);
+            }
+            weak[i] = readInt();
+            strong[i] = new byte[BlockSignatures.STRONG_LENGTH];
+            readFully(strong[i], 0, BlockSignatures.STRONG_LENGTH);
+        }
+        return new BlockSignatures(blockSize, lastBlockLength, weak, strong);
+    }
+
+    public long[] readBundleLengths() throws IOException {
+        int count = readCount("Bundle");
+        long[] lengths = new long[Math.min(count, Protocol.PREALLOCATED_ENTRIES)];
+        for (int i = 0; i < count; i++) {
+            if (i == lengths.length) {
+                lengths = Arrays.copyOf(lengths, grow(lengths.length, count));
+            }
+            lengths[i] = readVarLong();
+        }
+        return lengths;
+    }
+
+    public void readFully(byte[] bytes, int offset, int length) throws IOException {
+        if (decompressedPosition < decompressedLimit) {
+            checkDecompressed(length);
+            System.arraycopy(decompressed, decompressedPosition, bytes, offset, length);
+            decompressedPosition += length;
+            return;
+        }
+        int buffered = Math.min(length, limit - position);
+        System.arraycopy(buffer, position, bytes, offset, buffered);
+        position += buffered;
+        int remaining = length - buffered;
+        if (remaining >= BUFFER_SIZE) {
+            if (in.readNBytes(bytes, offset + buffered, remaining) < remaining) {
+                throw new EOFException();
+            }
+            return;
+        }
+        while (remaining > 0) {
+            fill();
+            int chunk = Math.min(remaining, limit - position);
+            System.arraycopy(buffer, position, bytes, offset + length - remaining, chunk);
+            position += chunk;
+            remaining -= chunk;
+        }
+    }
+
+    /**
+     * Fills the remaining space of the buffer.
+     */
+    public void readFully(ByteBuffer bytes) throws IOException {
+        if (decompressedPosition < decompressedLimit) {
+            int length = bytes.remaining();
+            checkDecompressed(length);
+            bytes.put(decompressed, decompressedPosition, length);
+            decompressedPosition += length;
+            return;
+        }
+        int buffered = Math.min(bytes.remaining(), limit - position);
+        bytes.put(buffer, position, buffered);
+        position += buffered;
+        while (bytes.hasRemaining()) {
+            if (channel != null) {
+                if (channel.read(bytes) < 0) {
+                    throw new EOFException();
+                }
+            } else {
+                fill();
+                int chunk = Math.min(bytes.remaining(), limit - position);
+                bytes.put(buffer, position, chunk);
+                position += chunk;
+            }
+        }
+    }
+
+    /**
+     * @return a non-negative int, every int field of the protocol is a count, a length, a tag or an id
+     */
+    public int readVarInt() throws IOException {
+        long value = readVarLong();
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new ProtocolException("Varint " + Long.toUnsignedString(value) + " exceeds an int");
+        }
+        return (int) value;
+    }
+
+    public long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Varint too long");
+    }
+
+    /**
+     * Reads a zigzag encoded value, see {@code FrameWriter.writeSignedVarLong}.
+     */
+    public long readSignedVarLong() throws IOException {
+        long value = readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+        if (codec != null) {
+            codec.close();
+        }
+    }
+
+    private void checkDecompressed(int length) throws ProtocolException {
+        if (length > decompressedLimit - decompressedPosition) {
+            throw new ProtocolException("Read of " + length + " bytes exceeds the compressed frame");
+        }
+    }
+
+    private FileInfo readRange() throws IOException {
+        String fileName = readString();
+        long offset = readVarLong();
+        long size = readVarLong();
+        long fileLength = readVarLong();
+        long lastModified = readSignedVarLong();
+        // a varint of ten bytes sets the sign bit, a negative offset would seek before the start of the file
+        if (offset < 0 || size < 0 || fileLength < 0) {
+            throw new ProtocolException("Negative range " + Long.toUnsignedString(offset) + ".." + Long.toUnsignedString(size)
+                    + " of " + Long.toUnsignedString(fileLength) + " bytes of " + fileName);
+        }
+        return new FileInfo(fileName, offset, size, fileLength, lastModified);
+    }
+
+    /**
+     * Reads the number of entries that follow. It only bounds the loop reading them, the storage for the entries
+     * grows as they arrive.
+     */
+    private int readCount(String what) throws IOException {
+        int count = readVarInt();
+        if (count > Protocol.MAX_ENTRIES) {
+            throw new ProtocolException(what + " of " + count + " entries");
+        }
+        return count;
+    }
+
+    private static int grow(int length, int count) {
+        return (int) Math.min(count, Math.max(1, length) * 2L);
+    }
+
+    private String readString() throws IOException {
+        int length = readVarInt();
+        if (length > Protocol.MAX_STRING_LENGTH) {
+            throw new ProtocolException("String of " + length + " bytes");
+        }
+        byte[] bytes = new byte[length];
+        readFully(bytes, 0, length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int readInt() throws IOException {
+        return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+    }
+
+    private long readLong() throws IOException {
+        return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+    }
+
+    private int readByte() throws IOException {
+        if (position == limit) {
+            fill();
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    private void fill() throws IOException {
+        int read = in.read(buffer, 0, BUFFER_SIZE);
+        if (read <= 0) {
+            throw new EOFException();
+        }
+        position = 0;
+        limit = read;
+    }
+}
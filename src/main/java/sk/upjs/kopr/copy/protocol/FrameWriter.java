@@ -0,0 +1,256 @@
+package sk.upjs.kopr.copy.protocol;
+
+import sk.upjs.kopr.copy.FileBundle;
+import sk.upjs.kopr.copy.FileInfo;
+import sk.upjs.kopr.copy.TransferMode;
+import sk.upjs.kopr.copy.compression.Compression;
+import sk.upjs.kopr.copy.delta.BlockSignatures;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.zip.CRC32C;
+
+/**
+ * Writes protocol frames into a buffered stream. Nothing reaches the socket before {@link #flush()}.
+ */
+public class FrameWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private final OutputStream out;
+    private final CRC32C checksum = new CRC32C();
+
+    public FrameWriter(OutputStream out) {
+        this.out = new BufferedOutputStream(out, BUFFER_SIZE);
+    }
+
+    public void writeHello(int numberOfSockets, TransferMode transferMode, boolean zeroCopyChecksums, Compression compression, int compressionLevel, String directory) throws IOException {
+        writeType(MessageType.HELLO);
+        writeInt(Protocol.MAGIC);
+        writeVarInt(Protocol.VERSION);
+        writeVarInt(numberOfSockets);
+        out.write(transferMode.ordinal());
+        out.write(zeroCopyChecksums ? 1 : 0);
+        out.write(compression.ordinal());
+        writeVarInt(compressionLevel);
+        writeString(directory);
+    }
+
+    public void writeSession(long session) throws IOException {
+        writeType(MessageType.SESSION);
+        writeLong(session);
+    }
+
+    public void writeJoin(long session) throws IOException {
+        writeType(MessageType.JOIN);
+        writeLong(session);
+    }
+
+    public void writeTotals(int files, long bytes) throws IOException {
+        writeType(MessageType.TOTALS);
+        writeVarInt(files);
+        writeVarLong(bytes);
+    }
+
+    public void writeScanComplete(int files, long bytes) throws IOException {
+        writeType(MessageType.SCAN_COMPLETE);
+        writeVarInt(files);
+        writeVarLong(bytes);
+    }
+
+    public void writeCommand(MessageType type) throws IOException {
+        writeType(type);
+    }
+
+    public void writeError(String message) throws IOException {
+        writeType(MessageType.ERROR);
+        writeString(message);
+    }
+
+    public void writeFileList(MessageType type, Collection<FileInfo> files) throws IOException {
+        writeType(type);
+        writeVarInt(files.size());
+        for (FileInfo fileInfo : files) {
+            writeFileInfo(fileInfo);
+        }
+    }
+
+    /**
+     * Writes one batch of the files already present on the client.
+     */
+    public void writeManifest(Collection<ManifestEntry> entries) throws IOException {
+        writeType(MessageType.MANIFEST);
+        writeVarInt(entries.size());
+        for (ManifestEntry entry : entries) {
+            writeString(entry.fileName());
+            writeVarLong(entry.size());
+            writeSignedVarLong(entry.lastModified());
+        }
+    }
+
+    public void writeRequest(int tag, FileInfo fileInfo) throws IOException {
+        writeType(MessageType.REQUEST);
+        writeVarInt(tag);
+        writeFileInfo(fileInfo);
+    }
+
+    /**
+     * Requests a range as a delta against the blocks the client already has.
+     */
+    public void writeDeltaRequest(int tag, FileInfo fileInfo, BlockSignatures signatures) throws IOException {
+        writeType(MessageType.DELTA_REQUEST);
+        writeVarInt(tag);
+        writeFileInfo(fileInfo);
+        writeVarInt(signatures.blockSize);
+        writeVarInt(signatures.lastBlockLength);
+        writeVarInt(signatures.count());
+        for (int i = 0; i < signatures.count(); i++) {
+            writeInt(signatures.weak[i]);
+            out.write(signatures.strong[i]);
+        }
+    }
+
+    public void writeBlock(int tag, int index) throws IOException {
+        writeType(MessageType.BLOCK);
+        writeVarInt(tag);
+        writeVarInt(index);
+    }
+
+    public void writeEnd() throws IOException {
+        writeType(MessageType.END);
+    }
+
+    /**
+     * Writes a complete DATA frame.
+     */
+    public void writeData(int tag, byte[] data, int offset, int length) throws IOException {
+        writeDataHeader(tag, length, checksum(data, offset, length));
+        out.write(data, offset, length);
+    }
+
+    /**
+     * Writes only the header of a DATA frame, the caller sends exactly {@code length} payload bytes after it.
+     *
+     * @param checksum CRC32C of the payload
+     */
+    public void writeDataHeader(int tag, int length, int checksum) throws IOException {
+        writeType(MessageType.DATA);
+        writeVarInt(tag);
+        writeVarInt(length);
+        writeInt(checksum);
+    }
+
+    /**
+     * @return CRC32C of the given bytes as carried by DATA and COMPRESSED frames
+     */
+    public int checksum(byte[] data, int offset, int length) {
+        checksum.reset();
+        checksum.update(data, offset, length);
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * Writes a DATA payload compressed by the socket's codec.
+     *
+     * @param checksum CRC32C of the uncompressed payload
+     */
+    public void writeCompressed(int tag, int rawLength, int checksum, byte[] data, int offset, int length) throws IOException {
+        writeType(MessageType.COMPRESSED);
+        writeVarInt(tag);
+        writeVarInt(rawLength);
+        writeVarInt(length);
+        writeInt(checksum);
+        out.write(data, offset, length);
+    }
+
+    public void writeBundleHeader(int tag, long[] lengths) throws IOException {
+        writeType(MessageType.BUNDLE);
+        writeVarInt(tag);
+        writeVarInt(lengths.length);
+        for (long length : lengths) {
+            writeVarLong(length);
+        }
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private void writeFileInfo(FileInfo fileInfo) throws IOException {
+        if (fileInfo instanceof FileBundle bundle) {
+            out.write(Protocol.KIND_BUNDLE);
+            writeVarInt(bundle.files.size());
+            for (FileInfo part : bundle.files) {
+                writeRange(part);
+            }
+        } else {
+            out.write(Protocol.KIND_RANGE);
+            writeRange(fileInfo);
+        }
+    }
+
+    private void writeRange(FileInfo fileInfo) throws IOException {
+        writeString(fileInfo.fileName);
+        writeVarLong(fileInfo.offset);
+        writeVarLong(fileInfo.size);
+        writeVarLong(fileInfo.fileLength);
+        writeSignedVarLong(fileInfo.lastModified);
+    }
+
+    private void writeType(MessageType type) throws IOException {
+        out.write(type.code);
+    }
+
+    private void writeInt(int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private void writeLong(long value) throws IOException {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+    }
+
+    private void writeString(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private void writeVarInt(int value) throws IOException {
+        writeVarLong(value & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Zigzag encoding keeps small negative values short: 0, -1, 1, -2 ... become 0, 1, 2, 3 ...
+     */
+    private void writeSignedVarLong(long value) throws IOException {
+        writeUnsignedVarLong((value << 1) ^ (value >> 63));
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value " + value);
+        }
+        writeUnsignedVarLong(value);
+    }
+
+    private void writeUnsignedVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
@@ -0,0 +1,12 @@
+package sk.upjs.kopr.copy.protocol;
+
+import sk.upjs.kopr.copy.TransferMode;
+import sk.upjs.kopr.copy.compression.Compression;
+
+/**
+ * @param zeroCopyChecksums whether DATA frames sent with {@code transferTo} carry the CRC32C of their payload
+ * @param directory directory of the server the client copies, empty for the whole served directory
+ */
+public record Hello(int version, int numberOfSockets, TransferMode transferMode, boolean zeroCopyChecksums, Compression compression, int compressionLevel,
+                    String directory) {
+}
@@ -0,0 +1,7 @@
+package sk.upjs.kopr.copy.protocol;
+
+/**
+ * A file the client already has, named as on the server.
+ */
+public record ManifestEntry(String fileName, long size, long lastModified) {
+}
@@ -0,0 +1,64 @@
+package sk.upjs.kopr.copy.protocol;
+
+/**
+ * Every frame on the wire starts with the one byte code of its message type.
+ */
+public enum MessageType {
+
+    /** client -> server: magic, protocol version, number of data sockets, transfer mode, compression and the requested directory */
+    HELLO(1),
+    /** server -> client: number of files and bytes, repeated while the server is still searching */
+    TOTALS(2),
+    /** client -> server: copy everything the server offers */
+    START(3),
+    /** client -> server: continue with the attached list of files */
+    RESUME(4),
+    /** server -> client: files to copy, a long list arrives in several frames */
+    FILE_LIST(5),
+    DELETE_CLIENT_PROGRESS(6),
+    DELETE_SERVER_PROGRESS(7),
+    /** client -> server on a data socket: tag and the requested file range or bundle */
+    REQUEST(8),
+    /** server -> client: tag, payload length, CRC32C of the payload and the payload */
+    DATA(9),
+    /** server -> client: tag and lengths of the bundled files, their payloads follow as DATA frames */
+    BUNDLE(10),
+    /** client -> server: no more requests on this socket */
+    END(11),
+    ERROR(12),
+    /** server -> client: the file list is complete, carries the final number of files and bytes */
+    SCAN_COMPLETE(13),
+    /** client -> server before START: name, size and modification time of files the client already has */
+    MANIFEST(14),
+    /** client -> server on a data socket: tag, the requested range and signatures of the client's blocks */
+    DELTA_REQUEST(15),
+    /** server -> client: tag and index of a client block that repeats in the requested range */
+    BLOCK(16),
+    /** server -> client: tag, uncompressed length, compressed length, CRC32C of the uncompressed payload and the compressed payload */
+    COMPRESSED(17),
+    /** server -> client after HELLO: random id of the session the data sockets join, a fixed 8 byte integer */
+    SESSION(18),
+    /** client -> server, first frame on a data socket: the session id as a fixed 8 byte integer */
+    JOIN(19);
+
+    private static final MessageType[] BY_CODE = new MessageType[32];
+
+    static {
+        for (MessageType type : values()) {
+            BY_CODE[type.code] = type;
+        }
+    }
+
+    public final int code;
+
+    MessageType(int code) {
+        this.code = code;
+    }
+
+    public static MessageType fromCode(int code) {
+        if (code < 0 || code >= BY_CODE.length || BY_CODE[code] == null) {
+            return null;
+        }
+        return BY_CODE[code];
+    }
+}
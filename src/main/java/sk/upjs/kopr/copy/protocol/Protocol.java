@@ -0,0 +1,37 @@
+package sk.upjs.kopr.copy.protocol;
+
+/**
+ * Constants of the binary protocol spoken between {@code Client} and {@code Server}.
+ * <p>
+ * A frame is a message type byte followed by its fields. Integers are unsigned LEB128 varints, the
+ * modification times, which are negative before 1970, are zigzag encoded first; strings are a varint byte length followed by UTF-8 bytes. File data travels in DATA frames
+ * prefixed by their length and the CRC32C of the payload, so the payload can be written straight from a
+ * file channel and the receiver can verify every frame before it counts as received.
+ */
+public final class Protocol {
+
+    public static final int MAGIC = 0x4B4F5052; // "KOPR"
+    public static final int VERSION = 9;
+
+    /** Upper bound for a single DATA frame sent with {@code transferTo}. */
+    public static final int MAX_FRAME_SIZE = 1 << 20;
+
+    /** Length of a JOIN frame, its fixed size lets the server read it without blocking. */
+    public static final int JOIN_LENGTH = 9;
+
+    static final int MAX_STRING_LENGTH = 1 << 16;
+
+    /**
+     * Upper bound of the entries of a manifest batch, a bundle or a set of block signatures. Storage for the
+     * entries grows with the entries actually read, a count sent by the peer never allocates more up front than
+     * {@link #PREALLOCATED_ENTRIES}.
+     */
+    static final int MAX_ENTRIES = 1 << 24;
+    static final int PREALLOCATED_ENTRIES = 1024;
+
+    static final byte KIND_RANGE = 0;
+    static final byte KIND_BUNDLE = 1;
+
+    private Protocol() {
+    }
+}
@@ -0,0 +1,4 @@
+package sk.upjs.kopr.copy.protocol;
+
+public record Totals(int files, long bytes) {
+}
@@ -1,101 +1,391 @@
 package sk.upjs.kopr.copy.server;
 
 import lombok.extern.slf4j.Slf4j;
+import sk.upjs.kopr.copy.FileBundle;
 import sk.upjs.kopr.copy.FileInfo;
+import sk.upjs.kopr.copy.TransferMode;
+import sk.upjs.kopr.copy.compression.AdaptiveCompressor;
+import sk.upjs.kopr.copy.compression.Codec;
+import sk.upjs.kopr.copy.delta.BlockSignatures;
+import sk.upjs.kopr.copy.delta.DeltaEncoder;
+import sk.upjs.kopr.copy.protocol.FrameReader;
+import sk.upjs.kopr.copy.protocol.FrameWriter;
+import sk.upjs.kopr.copy.protocol.MessageType;
+import sk.upjs.kopr.copy.protocol.Protocol;
 import sk.upjs.kopr.exceptions.ClientTerminatedConnectionException;
+import sk.upjs.kopr.metrics.Counter;
+import sk.upjs.kopr.metrics.LatencyHistogram;
+import sk.upjs.kopr.metrics.Meter;
+import sk.upjs.kopr.metrics.Metrics;
+import sk.upjs.kopr.tools.DirectBufferPool;
 import sk.upjs.kopr.tools.FilePathChanger;
+import sk.upjs.kopr.tools.TokenBucket;
 
 import java.io.*;
+import java.net.ProtocolException;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.CountDownLatch;
+import java.util.zip.CRC32C;
 
 @Slf4j
 public class FileSendTask implements Callable<Integer> {
     private static final int BLOCK_SIZE = 16384; // 16 kB
+    private static final Meter sentBytes = Metrics.getInstance().meter("server_sent_bytes");
+    private static final Meter sentFiles = Metrics.getInstance().meter("server_sent_files");
+    private static final LatencyHistogram requestLatency = Metrics.getInstance().histogram("server_request");
+    private static final Counter requeued = Metrics.getInstance().counter("server_requeued_requests");
+    private static final Counter throttled = Metrics.getInstance().counter("server_throttled_nanoseconds");
+
     private final BlockingQueue<FileInfo> files;
     private final Socket socket;
-    private final CountDownLatch countDownLatch;
+    private final TransferMode transferMode;
+    private final boolean zeroCopyChecksums;
+    private final AdaptiveCompressor compressor;
+    private final TokenBucket[] limits;
+
+    private FrameWriter out;
+    private FrameReader in;
+    private final byte[] buffer = new byte[BLOCK_SIZE];
+    private final CRC32C crc = new CRC32C();
+    private long send;
 
-    private ObjectOutputStream oos;
-    private ObjectInputStream ois;
+    private final Meter socketBytes;
+    private final Meter socketFiles;
 
-    public FileSendTask(BlockingQueue<FileInfo> files, Socket socket, CountDownLatch countDownLatch) {
+    /**
+     * @param zeroCopyChecksums whether the frames sent with {@code transferTo} carry a checksum, see {@link #transferRange}
+     * @param codec  compresses the file data of this socket, {@code null} to send it raw
+     * @param limits buckets every sent byte of file data is paid from, before compression
+     */
+    public FileSendTask(BlockingQueue<FileInfo> files, Socket socket, TransferMode transferMode, boolean zeroCopyChecksums, Codec codec, TokenBucket... limits) {
         this.files = files;
         this.socket = socket;
-        this.countDownLatch = countDownLatch;
+        this.transferMode = transferMode;
+        this.zeroCopyChecksums = zeroCopyChecksums;
+        this.compressor = codec == null ? null : new AdaptiveCompressor(codec);
+        this.limits = limits;
+        String port = String.valueOf(socket.getPort());
+        this.socketBytes = Metrics.getInstance().meter("server_socket_sent_bytes", "socket", port);
+        this.socketFiles = Metrics.getInstance().meter("server_socket_sent_files", "socket", port);
     }
 
     @Override
     public Integer call() {
+        try {
+            return sendAll();
+        } finally {
+            Metrics.getInstance().remove(socketBytes);
+            Metrics.getInstance().remove(socketFiles);
+        }
+    }
+
+    private Integer sendAll() {
         createStreams();
         while (true) {
             try {
-                FileInfo fileInfo = (FileInfo) ois.readObject();
-                if (fileInfo.size == -1L) { // poison pill
+                MessageType type = in.readType();
+                if (type == MessageType.END) { // poison pill
                     log.info("Poison pill received");
-                    countDownLatch.countDown();
-
+                    if (compressor != null) {
+                        log.info("Compression of socket " + socket.getPort() + ": " + compressor.stats());
+                    }
                     closeConnection();
                     break;
                 }
+                if (type != MessageType.REQUEST && type != MessageType.DELTA_REQUEST) {
+                    throw new ProtocolException("Unexpected " + type + " on data socket");
+                }
+                int tag = in.readVarInt();
+                FileInfo fileInfo = in.readFileInfo();
+                long requestStart = System.nanoTime();
 
                 files.remove(fileInfo);
+                if (type == MessageType.DELTA_REQUEST) {
+                    sendDelta(tag, fileInfo, in.readBlockSignatures());
+                    requestLatency.recordSince(requestStart);
+                    continue;
+                }
+                if (fileInfo instanceof FileBundle bundle) {
+                    sendBundle(tag, bundle);
+                    requestLatency.recordSince(requestStart);
+                    log.info("Bundle of " + bundle.files.size() + " files successfully sent");
+                    continue;
+                }
                 log.info("Start sending file " + FilePathChanger.getLastDirectoryName(fileInfo.fileName) + " from offset=" + fileInfo.offset);
 
-                File fileToSend = new File(fileInfo.fileName);
-                send(fileToSend, fileInfo);
+                send(tag, fileInfo);
+                requestLatency.recordSince(requestStart);
                 log.info("File " + FilePathChanger.getLastDirectoryName(fileInfo.fileName) + " successfully sent ");
 
-            } catch (ClientTerminatedConnectionException | SocketException e) {
+            } catch (ClientTerminatedConnectionException | SocketException | EOFException | ProtocolException e) {
+                return -1;
+            } catch (IOException e) {
+                // a reset of a channel backed socket is a plain IOException
+                log.error("Data socket failed: " + e);
+                return -1;
+            } catch (RuntimeException e) {
+                // a request the file cannot serve, such as a range past its end or a file that cannot be read; the client
+                // would request it again forever
+                log.error("Cannot serve request on socket " + socket.getPort() + ": " + e.getMessage());
+                fail(e.getMessage());
                 return -1;
-            } catch (Exception e) {
-                e.printStackTrace();
             }
         }
         return 1;
 
     }
 
-    private void send(File fileToSend, FileInfo fileInfo) throws ClientTerminatedConnectionException {
-        long send = 0;
-        try (RandomAccessFile raf = new RandomAccessFile(fileToSend, "r")) {
-
-            if (fileInfo.offset < 0 || fileInfo.size < 0 || fileInfo.offset > fileToSend.length()) {
-                throw new RuntimeException(socket.getInetAddress() + ":" + socket.getPort() + " : " + fileInfo
-                        + " exceeds the file size " + fileToSend.length());
+    private void send(int tag, FileInfo fileInfo) throws ClientTerminatedConnectionException {
+        send = 0;
+        // the file is opened before the first frame, a file that cannot be read fails the request instead of the socket
+        try (FileChannel fileChannel = open(fileInfo.fileName)) {
+            checkRange(fileInfo);
+            if (fileInfo.offset == fileInfo.size) {
+                out.writeDataHeader(tag, 0, 0); // the client waits for at least one frame
+            } else {
+                sendRange(tag, fileInfo, fileChannel);
+            }
+            out.flush();
+            if (fileInfo.size == fileInfo.fileLength) {
+                fileSent(1);
             }
-            raf.seek(fileInfo.offset);
-            byte[] buffer = new byte[BLOCK_SIZE];
 
-            for (send = 0; fileInfo.offset + send < fileInfo.size; send += BLOCK_SIZE) {
-                if (ois.available() > 0) {
-                    throw new RuntimeException(socket.getInetAddress() + ":" + socket.getPort() + " : "
-                            + "Premature closing data stream after " + send + " bytes send for " + fileInfo);
+        } catch (IOException e) {
+            requeued.increment();
+            files.add(fileInfo.from(fileInfo.offset + send));
+            log.info("Rest of " + fileInfo + " returned to the queue");
+
+            throw new ClientTerminatedConnectionException();
+        }
+    }
+
+    /**
+     * Sends all files of the bundle as one response: a BUNDLE frame with the length of every file
+     * followed by the contents of the files in DATA frames.
+     */
+    private void sendBundle(int tag, FileBundle bundle) throws ClientTerminatedConnectionException {
+        // a bundle may hold thousands of files, they are only checked before the header and opened one by one
+        for (FileInfo fileInfo : bundle.files) {
+            if (!Files.isReadable(Path.of(fileInfo.fileName))) {
+                throw new RuntimeException("Cannot read " + fileInfo.fileName);
+            }
+            checkRange(fileInfo);
+        }
+        try {
+            long[] lengths = new long[bundle.files.size()];
+            for (int i = 0; i < lengths.length; i++) {
+                lengths[i] = bundle.files.get(i).size - bundle.files.get(i).offset;
+            }
+            out.writeBundleHeader(tag, lengths);
+            for (FileInfo fileInfo : bundle.files) {
+                send = 0;
+                try (FileChannel fileChannel = open(fileInfo.fileName)) {
+                    sendRange(tag, fileInfo, fileChannel);
                 }
-                int size = (int) Math.min(BLOCK_SIZE, fileInfo.size - (fileInfo.offset + send));
-                raf.read(buffer, 0, size);
-                oos.write(buffer, 0, size);
             }
-            oos.flush();
+            out.flush();
+            fileSent(bundle.files.size());
+        } catch (IOException e) {
+            requeued.increment();
+            files.add(bundle);
+            log.info(bundle + " returned to the queue");
+
+            throw new ClientTerminatedConnectionException();
+        }
+    }
+
+    /**
+     * Sends the range as literal DATA frames and BLOCK references to the blocks the client already has.
+     */
+    private void sendDelta(int tag, FileInfo fileInfo, BlockSignatures signatures) throws ClientTerminatedConnectionException {
+        if (compressor != null) {
+            compressor.startRange();
+        }
+        try (FileChannel fileChannel = open(fileInfo.fileName)) {
+            long[] sent = new long[2];
+            new DeltaEncoder(fileChannel, fileInfo.offset, fileInfo.size, signatures).encode(new DeltaEncoder.Output() {
+                @Override
+                public void literal(byte[] data, int offset, int length) throws IOException {
+                    writeData(tag, data, offset, length);
+                    bytesSent(length);
+                    sent[0] += length;
+                }
 
+                @Override
+                public void block(int index) throws IOException {
+                    out.writeBlock(tag, index);
+                    sent[1] += signatures.blockLength(index);
+                }
+            });
+            out.flush();
+            if (fileInfo.size == fileInfo.fileLength) {
+                fileSent(1);
+            }
+            log.info("Delta of " + FilePathChanger.getLastDirectoryName(fileInfo.fileName) + " sent: "
+                    + sent[0] + " literal bytes, " + sent[1] + " bytes in blocks");
         } catch (IOException e) {
-            files.add(new FileInfo(fileInfo.fileName, fileInfo.offset + send, fileInfo.size));
-            Server.saveProgress(files);
-            log.info("Progress was saved");
+            requeued.increment();
+            files.add(fileInfo);
+            log.info("Delta of " + fileInfo + " returned to the queue");
 
             throw new ClientTerminatedConnectionException();
         }
     }
 
+    /**
+     * Fails a range the file cannot fill, such as one of a file that shrank since it was planned.
+     */
+    private void checkRange(FileInfo fileInfo) {
+        long length = new File(fileInfo.fileName).length();
+        if (fileInfo.offset < 0 || fileInfo.offset > fileInfo.size || fileInfo.size > length) {
+            throw new RuntimeException(socket.getInetAddress() + ":" + socket.getPort() + " : " + fileInfo
+                    + " exceeds the file size " + length);
+        }
+    }
+
+    /**
+     * Failures of the file, unlike those of the socket, throw an {@link UncheckedIOException}, the client is told
+     * instead of requesting the range again.
+     */
+    private static FileChannel open(String fileName) {
+        try {
+            return FileChannel.open(Path.of(fileName), StandardOpenOption.READ);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open " + fileName + ": " + e, e);
+        }
+    }
+
+    private static void readFully(FileChannel fileChannel, String fileName, ByteBuffer target, long position) {
+        try {
+            while (target.hasRemaining()) {
+                int read = fileChannel.read(target, position);
+                if (read < 0) {
+                    throw new EOFException("File was truncated at " + position + " while sending");
+                }
+                position += read;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read " + fileName + ": " + e, e);
+        }
+    }
+
+    private void sendRange(int tag, FileInfo fileInfo, FileChannel fileChannel) throws IOException {
+        if (compressor != null) {
+            compressor.startRange();
+        }
+        // compressed data has to pass through user space, compression takes precedence over zero-copy
+        if (transferMode == TransferMode.ZERO_COPY && compressor == null) {
+            transferRange(tag, fileInfo, fileChannel);
+        } else {
+            streamRange(tag, fileInfo, fileChannel);
+        }
+    }
+
+    private void streamRange(int tag, FileInfo fileInfo, FileChannel fileChannel) throws IOException {
+        while (fileInfo.offset + send < fileInfo.size) {
+            int size = (int) Math.min(BLOCK_SIZE, fileInfo.size - (fileInfo.offset + send));
+            readFully(fileChannel, fileInfo.fileName, ByteBuffer.wrap(buffer, 0, size), fileInfo.offset + send);
+            writeData(tag, buffer, 0, size);
+            send += size;
+            bytesSent(size);
+        }
+    }
+
+    private void bytesSent(long length) {
+        sentBytes.add(length);
+        socketBytes.add(length);
+        if (limits.length > 0) {
+            throttled.add(TokenBucket.acquire(length, limits));
+        }
+    }
+
+    private void fileSent(int count) {
+        sentFiles.add(count);
+        socketFiles.add(count);
+    }
+
+    private void writeData(int tag, byte[] data, int offset, int length) throws IOException {
+        if (compressor != null) {
+            compressor.writeData(out, tag, data, offset, length);
+        } else {
+            out.writeData(tag, data, offset, length);
+        }
+    }
+
+    /**
+     * Sends the range {@code offset..size} of the file straight from the page cache to the socket.
+     * Only the frame headers pass through the buffered writer. The checksum of a frame still reads its bytes once,
+     * a client that does not want it gets frames with a checksum of 0 and the data never enters user space.
+     */
+    private void transferRange(int tag, FileInfo fileInfo, FileChannel fileChannel) throws IOException {
+        SocketChannel socketChannel = socket.getChannel();
+
+        while (fileInfo.offset + send < fileInfo.size) {
+            long position = fileInfo.offset + send;
+            int frameSize = (int) Math.min(Protocol.MAX_FRAME_SIZE, fileInfo.size - position);
+            out.writeDataHeader(tag, frameSize, zeroCopyChecksums ? checksum(fileChannel, fileInfo.fileName, position, frameSize) : 0);
+            out.flush();
+
+            long end = position + frameSize;
+            while (position < end) {
+                long transferred = fileChannel.transferTo(position, end - position, socketChannel);
+                if (transferred == 0 && position >= fileChannel.size()) {
+                    throw new UncheckedIOException(new EOFException(fileInfo + " was truncated while sending"));
+                }
+                position += transferred;
+            }
+            send += frameSize;
+            bytesSent(frameSize);
+        }
+    }
+
+    /**
+     * Checksums a frame before it is transferred. The bytes are read from the page cache through a small
+     * direct buffer, the payload itself still goes to the socket without passing through user space.
+     */
+    private int checksum(FileChannel fileChannel, String fileName, long position, int length) {
+        ByteBuffer checksumBuffer = DirectBufferPool.getInstance().acquire();
+        try {
+            crc.reset();
+            long end = position + length;
+            while (position < end) {
+                checksumBuffer.clear().limit((int) Math.min(checksumBuffer.capacity(), end - position));
+                readFully(fileChannel, fileName, checksumBuffer, position);
+                position += checksumBuffer.limit();
+                crc.update(checksumBuffer.flip());
+            }
+            return (int) crc.getValue();
+        } finally {
+            DirectBufferPool.getInstance().release(checksumBuffer);
+        }
+    }
+
+    private void fail(String message) {
+        try {
+            out.writeError(message);
+            out.flush();
+        } catch (IOException e) {
+            // the client learns from the closed socket instead
+        }
+        closeConnection();
+    }
+
     private void closeConnection() {
         try {
-            if (oos != null)
-                oos.close();
-            if (ois != null)
-                ois.close();
+            if (out != null)
+                out.close();
+            if (in != null)
+                in.close();
+            if (compressor != null)
+                compressor.close();
             if (socket != null && !socket.isClosed())
                 socket.close();
         } catch (IOException e) {
@@ -105,8 +395,8 @@ public class FileSendTask implements Callable<Integer> {
 
     private void createStreams() {
         try {
-            oos = new ObjectOutputStream(socket.getOutputStream());
-            ois = new ObjectInputStream(socket.getInputStream());
+            out = new FrameWriter(socket.getOutputStream());
+            in = new FrameReader(socket.getInputStream());
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,115 @@
+package sk.upjs.kopr.copy.server;
+
+import lombok.extern.slf4j.Slf4j;
+import sk.upjs.kopr.metrics.Metrics;
+import sk.upjs.kopr.tools.PropertiesManager;
+import sk.upjs.kopr.tools.TokenBucket;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The file data a server sends passes three token buckets: one for the whole server, one for its session and one
+ * for its socket. The buckets read the caps from here on every reservation, so a cap changed through the
+ * {@code sk.upjs.kopr:type=RateLimits} MBean applies at once, also to the sessions already running.
+ */
+@Slf4j
+public class RateLimits implements RateLimitsMBean {
+
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private volatile long globalBytesPerSecond;
+    private volatile long sessionBytesPerSecond;
+    private volatile long socketBytesPerSecond;
+    private final TokenBucket global = new TokenBucket(() -> globalBytesPerSecond, BURST_NANOS);
+    private ObjectName objectName;
+
+    public RateLimits(long globalBytesPerSecond, long sessionBytesPerSecond, long socketBytesPerSecond) {
+        this.globalBytesPerSecond = globalBytesPerSecond;
+        this.sessionBytesPerSecond = sessionBytesPerSecond;
+        this.socketBytesPerSecond = socketBytesPerSecond;
+        Metrics.getInstance().gauge("server_rate_limit", () -> this.globalBytesPerSecond, "level", "global");
+        Metrics.getInstance().gauge("server_rate_limit", () -> this.sessionBytesPerSecond, "level", "session");
+        Metrics.getInstance().gauge("server_rate_limit", () -> this.socketBytesPerSecond, "level", "socket");
+    }
+
+    /**
+     * @return the caps of config.properties
+     */
+    public static RateLimits fromProperties() {
+        PropertiesManager props = PropertiesManager.getInstance();
+        return new RateLimits(props.getRateLimit(), props.getSessionRateLimit(), props.getSocketRateLimit());
+    }
+
+    /**
+     * Exports the caps through JMX, named after the port so several servers in one JVM keep their own.
+     */
+    void register(int port) {
+        try {
+            objectName = new ObjectName("sk.upjs.kopr:type=RateLimits,port=" + port);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException e) {
+            objectName = null;
+            log.warn("Rate limits cannot be changed through JMX: " + e);
+        }
+    }
+
+    void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            log.warn("Rate limits stay registered: " + e);
+        }
+        objectName = null;
+    }
+
+    TokenBucket global() {
+        return global;
+    }
+
+    TokenBucket newSessionBucket() {
+        return new TokenBucket(() -> sessionBytesPerSecond, BURST_NANOS);
+    }
+
+    TokenBucket newSocketBucket() {
+        return new TokenBucket(() -> socketBytesPerSecond, BURST_NANOS);
+    }
+
+    @Override
+    public long getGlobalBytesPerSecond() {
+        return globalBytesPerSecond;
+    }
+
+    @Override
+    public void setGlobalBytesPerSecond(long bytesPerSecond) {
+        log.info("Global rate limit changed from " + globalBytesPerSecond + " to " + bytesPerSecond + " B/s");
+        globalBytesPerSecond = bytesPerSecond;
+    }
+
+    @Override
+    public long getSessionBytesPerSecond() {
+        return sessionBytesPerSecond;
+    }
+
+    @Override
+    public void setSessionBytesPerSecond(long bytesPerSecond) {
+        log.info("Session rate limit changed from " + sessionBytesPerSecond + " to " + bytesPerSecond + " B/s");
+        sessionBytesPerSecond = bytesPerSecond;
+    }
+
+    @Override
+    public long getSocketBytesPerSecond() {
+        return socketBytesPerSecond;
+    }
+
+    @Override
+    public void setSocketBytesPerSecond(long bytesPerSecond) {
+        log.info("Socket rate limit changed from " + socketBytesPerSecond + " to " + bytesPerSecond + " B/s");
+        socketBytesPerSecond = bytesPerSecond;
+    }
+}
@@ -0,0 +1,20 @@
+package sk.upjs.kopr.copy.server;
+
+/**
+ * Bandwidth caps of a running server in bytes per second, 0 = unlimited. They can be changed through JMX, e.g. in
+ * jconsole, and apply to the transfers already running.
+ */
+public interface RateLimitsMBean {
+
+    long getGlobalBytesPerSecond();
+
+    void setGlobalBytesPerSecond(long bytesPerSecond);
+
+    long getSessionBytesPerSecond();
+
+    void setSessionBytesPerSecond(long bytesPerSecond);
+
+    long getSocketBytesPerSecond();
+
+    void setSocketBytesPerSecond(long bytesPerSecond);
+}
@@ -1,252 +1,293 @@
 package sk.upjs.kopr.copy.server;
 
 import lombok.extern.slf4j.Slf4j;
-import sk.upjs.kopr.copy.FileInfo;
+import sk.upjs.kopr.copy.protocol.FrameWriter;
+import sk.upjs.kopr.copy.protocol.MessageType;
+import sk.upjs.kopr.copy.protocol.Protocol;
 import sk.upjs.kopr.exceptions.DirectoryNotFoundException;
+import sk.upjs.kopr.metrics.Counter;
+import sk.upjs.kopr.metrics.Metrics;
 import sk.upjs.kopr.tools.PropertiesManager;
-import sk.upjs.kopr.tools.Searcher;
-
-import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
+import sk.upjs.kopr.tools.ScanIndex;
+import sk.upjs.kopr.tools.TaskExecutors;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
-
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serves the configured directory to any number of clients at once. A single selector thread accepts the
+ * connections and reads their first frame without blocking: a HELLO opens a new {@link ServerSession}, a JOIN hands
+ * a data socket to the session it names. The sessions and their send tasks then block on their own sockets, with
+ * {@code virtualThreads=true} on virtual threads that the JDK parks on its own poller, so many clients are served
+ * from the few carrier threads.
+ */
 @Slf4j
 public class Server {
 
     private final PropertiesManager props = PropertiesManager.getInstance();
 
-    private ServerSocket serverSocket;
-    private List<Socket> sockets = new ArrayList<>();
+    private final AtomicBoolean isRunning = new AtomicBoolean();
+    private final CountDownLatch listening = new CountDownLatch(1);
+    private volatile Selector selector;
 
-    private AtomicBoolean isRunning = new AtomicBoolean();
+    // a JOIN names its session by the id alone, sequential ids would let any client join the sessions of others
+    private final SecureRandom sessionIds = new SecureRandom();
+    private final Map<Long, ServerSession> sessions = new ConcurrentHashMap<>();
+    private final ExecutorService sessionExecutor = TaskExecutors.newUnboundedExecutor("session", props.isVirtualThreads());
+    private final ExecutorService scanExecutor = Executors.newCachedThreadPool();
 
-    private BlockingQueue<FileInfo> filesToSend = new LinkedBlockingQueue<>();
-    private AtomicInteger totalFiles = new AtomicInteger();
-    private AtomicLong totalLength = new AtomicLong();
+    private Path root;
+    private final ReentrantLock scanIndexLock = new ReentrantLock();
+    private ScanIndex scanIndex;
 
-    private ExecutorService executor;
+    private final RateLimits rateLimits = RateLimits.fromProperties();
 
+    private final Counter sessionCount = Metrics.getInstance().counter("server_sessions");
+    private final Counter resumes = Metrics.getInstance().counter("server_resumes");
 
     public void start() {
         log.info("Server was started");
-        try {
-            search();
-            connect();
-            managingConnection();
-
-            connectClients();
-            sendFiles();
-        } catch (DirectoryNotFoundException e) {
-            log.error(e.toString());
-            stopServer();
-        } catch (InterruptedException e) {
-            log.info("Server was terminated");
-        } finally {
-            deleteProgressFile();
-            try {
-                reconnect();
-            } catch (InterruptedException e) {
-                log.error("Error while sending files");
-            }
+        Metrics.getInstance().gauge("server_queue_depth", () -> sessions.values().stream().mapToLong(ServerSession::getQueueDepth).sum());
+        Metrics.getInstance().gauge("server_active_sessions", sessions::size);
+        Metrics.getInstance().startEndpoint(props.getMetricsPort());
+
+        File directory = new File(props.getDirectory());
+        if (!directory.exists() || !directory.isDirectory()) {
+            log.error(new DirectoryNotFoundException(directory).toString());
+            return;
         }
-    }
+        root = directory.toPath().toAbsolutePath().normalize();
+        rateLimits.register(props.getPort());
 
-    public void connect() {
-        if (!isRunning.get()) {
-            isRunning.set(true);
-            try {
-                serverSocket = new ServerSocket(props.getPort());
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        isRunning.set(true);
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open(); Selector selector = Selector.open()) {
+            // sockets accepted through the channel carry a SocketChannel for zero-copy sends
+            serverChannel.bind(new InetSocketAddress(props.getPort()));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            this.selector = selector;
+            listening.countDown();
+            log.info("Waiting for connection...");
+            select(serverChannel, selector);
+        } catch (IOException e) {
+            log.error("Server failed: " + e);
+        } finally {
+            isRunning.set(false);
+            rateLimits.unregister();
+            sessionExecutor.shutdownNow();
+            scanExecutor.shutdownNow();
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private void managingConnection() {
-        try {
-            Socket managingSocket = serverSocket.accept();
-            ObjectOutputStream oos = new ObjectOutputStream(managingSocket.getOutputStream());
-            ObjectInputStream ois = new ObjectInputStream(managingSocket.getInputStream());
-
-            props.setNumberOfSockets(ois.readInt());
-
-            File directory = new File(props.getDirectory());
-            if (!directory.exists() || !directory.isDirectory()) {
-                throw new DirectoryNotFoundException(directory);
-            }
-            long globalTotalFileSize = 0;
-            int globalTotalFiles = 0;
-            for (File file : Searcher.search(directory)){
-                globalTotalFileSize += file.length();
-                globalTotalFiles += 1;
-            }
-
-            oos.writeInt(globalTotalFiles);
-            oos.flush();
-
-            oos.writeLong(globalTotalFileSize);
-            oos.flush();
-
-            String command = ois.readUTF();
-            filesToSend = loadProgress().size() > 0 ? loadProgress() : filesToSend;
-            totalLength.set(filesToSend.stream().mapToLong(f -> f.size - f.offset).sum());
-            totalFiles.set(filesToSend.size());
+    /**
+     * Waits until the server accepts connections, a client started earlier would retry only once a second.
+     *
+     * @return {@code false} if the server did not bind its port in time
+     */
+    public boolean awaitListening(long timeout, TimeUnit unit) throws InterruptedException {
+        return listening.await(timeout, unit);
+    }
 
-            if ("RESUME".equals(command)) {
-                filesToSend = (BlockingQueue<FileInfo>) ois.readObject();
+    /**
+     * Stops accepting connections and ends the running sessions.
+     */
+    public void stop() {
+        isRunning.set(false);
+        Selector current = selector;
+        if (current != null) {
+            current.wakeup();
+        }
+    }
 
-                oos.writeUTF("DELETE CLIENT PROGRESS");
-                oos.flush();
-            } else if ("START".equals(command)) {
-                oos.writeInt(totalFiles.get());
-                oos.writeLong(totalLength.get());
-                oos.writeObject(filesToSend);
-                oos.flush();
+    private void select(ServerSocketChannel serverChannel, Selector selector) throws IOException {
+        List<SelectionKey> identified = new ArrayList<>();
+        while (isRunning.get()) {
+            selector.select();
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept(serverChannel, selector);
+                } else if (key.isReadable() && readFirstFrame(key)) {
+                    key.cancel();
+                    identified.add(key);
+                }
             }
-            if(ois.readUTF().equals("DELETE SERVER PROGRESS")){
-                new File("server_progress.obj").delete();
-                log.info("Server progress was deleted");
+            if (!identified.isEmpty()) {
+                // a channel goes back to blocking mode only once the selector dropped its cancelled key
+                selector.selectNow();
+                selector.selectedKeys().clear();
+                for (SelectionKey key : identified) {
+                    dispatch((SocketChannel) key.channel(), (ByteBuffer) key.attachment());
+                }
+                identified.clear();
             }
-        } catch (IOException | ClassNotFoundException e) {
-            e.printStackTrace();
-        } catch (DirectoryNotFoundException e) {
-            e.printStackTrace();
         }
     }
 
-    private void sendFiles() throws InterruptedException {
-        log.info("Remaining files to send: " + totalFiles);
-        log.info("Remaining bytes to send: " + totalLength);
-
-        CountDownLatch latch = new CountDownLatch(sockets.size());
-        executor = Executors.newFixedThreadPool(sockets.size());
-
-        List<Future<Integer>> futures = new ArrayList<>();
-        for (Socket socket : sockets) {
-            FileSendTask task = new FileSendTask(filesToSend, socket, latch);
-            futures.add(executor.submit(task));
+    private void accept(ServerSocketChannel serverChannel, Selector selector) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(Protocol.JOIN_LENGTH));
         }
+    }
 
-        boolean flag = false;
+    /**
+     * Reads what arrived of the first frame of a connection, never more than a JOIN frame.
+     *
+     * @return {@code true} once the connection can be handed over
+     */
+    private boolean readFirstFrame(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        ByteBuffer first = (ByteBuffer) key.attachment();
         try {
-            for (Future<Integer> future : futures) {
-                if (future.get() == -1) {
-                    flag = true;
-                    break;
-                }
-            }
-            if (flag) {
-                log.error("Client was disconnected.");
-                reconnect();
-                executor.shutdown();
-                return;
-            }
-
-            latch.await();
-            for (Socket socket : sockets) {
-                socket.close();
+            if (channel.read(first) < 0) {
+                key.cancel();
+                closeQuietly(channel);
+                return false;
             }
-            executor.shutdown();
-        } catch (ExecutionException | IOException e) {
-            log.error("Error while sending files");
+        } catch (IOException e) {
+            key.cancel();
+            closeQuietly(channel);
+            return false;
         }
-
-    }
-
-    public void search() throws DirectoryNotFoundException {
-        log.info("Searching over directory");
-
-        File directory = new File(props.getDirectory());
-        if (!directory.exists() || !directory.isDirectory()) {
-            throw new DirectoryNotFoundException(directory);
+        if (first.position() == 0) {
+            return false;
         }
-
-        for (File file : Searcher.search(directory)){
-            filesToSend.add(new FileInfo(file.getAbsolutePath(),0l,file.length()));
-            totalLength.addAndGet(file.length());
-            totalFiles.addAndGet(1);
+        int type = first.get(0);
+        if (type == MessageType.HELLO.code) {
+            return true;
         }
-
-        log.info("Searching ended. Found " + totalFiles + " files");
-    }
-
-    public synchronized void reconnect() throws InterruptedException {
-        log.info("Waiting for connection...");
-
-        isRunning.set(true);
-        executor.shutdown();
-
-        managingConnection();
-        connectClients();
-        sendFiles();
-        deleteProgressFile();
+        if (type == MessageType.JOIN.code) {
+            return !first.hasRemaining();
+        }
+        log.warn("Connection from " + channel.socket().getRemoteSocketAddress() + " starts with message type " + type);
+        key.cancel();
+        closeQuietly(channel);
+        return false;
     }
 
-    private void connectClients() {
-        sockets.clear();
+    private void dispatch(SocketChannel channel, ByteBuffer first) {
         try {
-            for (int i = 0; i < props.getNumberOfSockets(); i++) {
-                sockets.add(serverSocket.accept());
+            channel.configureBlocking(true);
+            first.flip();
+            if (first.get(0) == MessageType.HELLO.code) {
+                long id;
+                do {
+                    id = sessionIds.nextLong();
+                } while (sessions.containsKey(id)); // only this thread adds sessions
+                ServerSession session = new ServerSession(this, id, channel.socket(), first);
+                sessions.put(session.getId(), session);
+                sessionCount.increment();
+                sessionExecutor.submit(session);
+                return;
+            }
+            ServerSession session = sessions.get(first.getLong(1));
+            if (session == null) {
+                log.warn("Data socket from " + channel.socket().getRemoteSocketAddress() + " joins unknown session");
+                FrameWriter out = new FrameWriter(channel.socket().getOutputStream());
+                out.writeError("Unknown session");
+                out.flush();
+                closeQuietly(channel);
+                return;
             }
+            session.join(channel.socket());
         } catch (IOException e) {
-            log.error("Error while connecting to clients");
+            log.error("Cannot hand over " + channel + ": " + e);
+            closeQuietly(channel);
         }
-        log.info("Clients connected successfully");
     }
 
-    public static synchronized void saveProgress(BlockingQueue<FileInfo> files) {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream("server_progress.obj"))) {
-            oos.writeObject(files);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    void remove(ServerSession session) {
+        sessions.remove(session.getId());
+        log.info("Session " + session.getId() + " ended, " + sessions.size() + " sessions left");
     }
 
-    @SuppressWarnings("unchecked")
-    public static synchronized BlockingQueue<FileInfo> loadProgress() {
-        File progressFile = new File("server_progress.obj");
+    void resumed() {
+        resumes.increment();
+    }
 
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(progressFile))) {
-            BlockingQueue<FileInfo> result = (BlockingQueue<FileInfo>) ois.readObject();
-            progressFile.delete();
-            log.info("Loading progress: " + result);
-            return result;
-        } catch (FileNotFoundException e) {
-            return new LinkedBlockingQueue<>();
-        } catch (IOException | ClassNotFoundException e) {
-            e.printStackTrace();
-        }
+    RateLimits getRateLimits() {
+        return rateLimits;
+    }
 
-        log.info("Loading progress: " + new LinkedBlockingQueue<>());
-        return new LinkedBlockingQueue<>();
+    ExecutorService getScanExecutor() {
+        return scanExecutor;
     }
 
-    public void deleteProgressFile() {
-        File file = new File("server_progress.obj");
-        if (file.exists()) {
-            file.delete();
+    /**
+     * @param requested directory named by the client, empty for the served directory
+     * @return the directory to search, {@code null} if it is not inside the served directory
+     */
+    File resolve(String requested) {
+        if (requested.isEmpty()) {
+            return root.toFile();
         }
+        File directory = new File(requested);
+        Path path = directory.toPath().toAbsolutePath().normalize();
+        if (!path.startsWith(root) || !directory.isDirectory()) {
+            return null;
+        }
+        // the names in the file list keep the client's spelling of the directory, the client maps them by it
+        return directory;
     }
 
-    private void stopServer() {
-        isRunning.set(false);
-        if (serverSocket != null && !serverSocket.isClosed()) {
-            try {
-                serverSocket.close();
-            } catch (IOException e) {
-                log.error("Error while closing the server socket");
-            }
+    /**
+     * @return the index of the last search over the served directory, or {@code null} if the index is turned off,
+     * the session searches a subdirectory or another session searches with the index right now
+     */
+    ScanIndex acquireScanIndex(File directory) {
+        if (props.getScanIndex().isEmpty() || !directory.toPath().toAbsolutePath().normalize().equals(root)
+                || !scanIndexLock.tryLock()) {
+            return null;
+        }
+        if (scanIndex == null) {
+            scanIndex = ScanIndex.load(Path.of(props.getScanIndex()), directory.toPath());
         }
-        if (executor != null) {
-            executor.shutdown();
+        return scanIndex;
+    }
+
+    void releaseScanIndex(ScanIndex index) {
+        if (index == null) {
+            return;
+        }
+        try {
+            index.save(Path.of(props.getScanIndex()));
+            log.info("Scan index saved: " + index.size() + " directories");
+        } finally {
+            scanIndexLock.unlock();
         }
     }
 
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing left to release
+        }
+    }
 }
@@ -0,0 +1,414 @@
+package sk.upjs.kopr.copy.server;
+
+import lombok.extern.slf4j.Slf4j;
+import sk.upjs.kopr.copy.FileInfo;
+import sk.upjs.kopr.copy.TransferMode;
+import sk.upjs.kopr.copy.protocol.FrameReader;
+import sk.upjs.kopr.copy.protocol.FrameWriter;
+import sk.upjs.kopr.copy.protocol.Hello;
+import sk.upjs.kopr.copy.protocol.ManifestEntry;
+import sk.upjs.kopr.copy.protocol.MessageType;
+import sk.upjs.kopr.copy.protocol.Protocol;
+import sk.upjs.kopr.tools.PropertiesManager;
+import sk.upjs.kopr.tools.ScanIndex;
+import sk.upjs.kopr.tools.Searcher;
+import sk.upjs.kopr.tools.TaskExecutors;
+import sk.upjs.kopr.tools.TokenBucket;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * One client copying from the {@link Server}: its managing socket, the files it requested and the data sockets
+ * that joined it. Every session has its own queue, totals and settings from the client's HELLO, so clients
+ * copying different or overlapping directories do not see each other.
+ */
+@Slf4j
+public class ServerSession implements Runnable {
+
+    private static final int LIST_BATCH_SIZE = 1024;
+    private static final long LIST_FLUSH_MILLIS = 100;
+    private static final long JOIN_TIMEOUT_SECONDS = 30;
+    private static final long JOIN_POLL_MILLIS = 50;
+
+    private final PropertiesManager props = PropertiesManager.getInstance();
+
+    private final Server server;
+    private final long id;
+    private final Socket managingSocket;
+    private final FrameReader in;
+    private final BlockingQueue<Socket> joined = new LinkedBlockingQueue<>();
+    private final TokenBucket sessionLimit;
+
+    private Hello hello;
+    private File directory;
+    private Future<?> listing;
+    private volatile BlockingQueue<FileInfo> filesToSend = new LinkedBlockingQueue<>();
+    private final AtomicInteger totalFiles = new AtomicInteger();
+    private final AtomicLong totalLength = new AtomicLong();
+    private final AtomicInteger globalTotalFiles = new AtomicInteger();
+    private final AtomicLong globalTotalLength = new AtomicLong();
+
+    /**
+     * @param prefetched start of the HELLO frame, read by the server to tell the managing socket from a data socket
+     */
+    ServerSession(Server server, long id, Socket managingSocket, ByteBuffer prefetched) throws IOException {
+        this.server = server;
+        this.id = id;
+        this.managingSocket = managingSocket;
+        this.in = new FrameReader(managingSocket.getInputStream(), prefetched);
+        this.sessionLimit = server.getRateLimits().newSessionBucket();
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public int getQueueDepth() {
+        return filesToSend.size();
+    }
+
+    /**
+     * Hands over a data socket whose JOIN named this session.
+     */
+    void join(Socket socket) {
+        joined.add(socket);
+    }
+
+    @Override
+    public void run() {
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            FrameWriter out = new FrameWriter(managingSocket.getOutputStream());
+            if (!handshake(out)) {
+                return;
+            }
+            for (int i = 0; i < hello.numberOfSockets(); i++) {
+                Socket socket = joined.poll(JOIN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                if (socket == null) {
+                    throw new IOException("Client did not open its data sockets");
+                }
+                sockets.add(socket);
+            }
+            log.info("Session " + id + ": clients connected successfully");
+            sendFiles(sockets);
+            if (listing != null) {
+                listing.get();
+            }
+        } catch (IOException e) {
+            log.error("Session " + id + " failed: " + e);
+        } catch (InterruptedException e) {
+            log.info("Session " + id + " was terminated");
+        } catch (ExecutionException e) {
+            log.error("Session " + id + ": sending the file list failed: " + e.getCause());
+        } finally {
+            if (listing != null) {
+                listing.cancel(true);
+            }
+            for (Socket socket : sockets) {
+                closeQuietly(socket);
+            }
+            for (Socket socket : joined) {
+                closeQuietly(socket);
+            }
+            closeQuietly(managingSocket);
+            server.remove(this);
+        }
+    }
+
+    /**
+     * Agrees on the settings and the files with the client.
+     *
+     * @return {@code false} if the client was turned away
+     */
+    private boolean handshake(FrameWriter out) throws IOException {
+        hello = in.readHello();
+        if (hello.version() != Protocol.VERSION) {
+            out.writeError("Unsupported protocol version " + hello.version() + ", server speaks " + Protocol.VERSION);
+            out.flush();
+            log.error("Session " + id + ": client uses protocol version " + hello.version());
+            return false;
+        }
+        directory = server.resolve(hello.directory());
+        if (directory == null) {
+            out.writeError("Directory " + hello.directory() + " is not served");
+            out.flush();
+            log.error("Session " + id + ": directory " + hello.directory() + " is not served");
+            return false;
+        }
+        log.info("Session " + id + ": " + directory + ", transfer mode " + hello.transferMode()
+                + (hello.transferMode() == TransferMode.ZERO_COPY && !hello.zeroCopyChecksums() ? " without checksums" : "") + ", compression "
+                + hello.compression() + ", level " + hello.compressionLevel() + ", " + hello.numberOfSockets() + " sockets");
+        out.writeSession(id);
+
+        ScanIndex scanIndex = null;
+        try {
+            if (!props.isStreamingScan()) {
+                scanIndex = server.acquireScanIndex(directory);
+                search(scanIndex);
+            }
+
+            // totals of the whole tree come from the search, a streaming search reports them later
+            out.writeTotals(globalTotalFiles.get(), globalTotalLength.get());
+            out.flush();
+
+            MessageType command = in.readType();
+            Map<String, ManifestEntry> manifest = new HashMap<>();
+            while (command == MessageType.MANIFEST) {
+                for (ManifestEntry entry : in.readManifest()) {
+                    manifest.put(entry.fileName(), entry);
+                }
+                command = in.readType();
+            }
+
+            if (!manifest.isEmpty() && !props.isStreamingScan()) {
+                filesToSend = new LinkedBlockingQueue<>(withoutClientFiles(filesToSend, manifest, scanIndex));
+            }
+            totalLength.set(filesToSend.stream().mapToLong(f -> f.size - f.offset).sum());
+            totalFiles.set((int) filesToSend.stream().flatMap(f -> f.parts().stream()).map(f -> f.fileName).distinct().count());
+
+            if (command == MessageType.RESUME) {
+                filesToSend = in.readFileList();
+                server.resumed();
+
+                out.writeCommand(MessageType.DELETE_CLIENT_PROGRESS);
+                out.flush();
+            } else if (command == MessageType.START && props.isStreamingScan()) {
+                filesToSend = new LinkedBlockingQueue<>();
+                totalFiles.set(0);
+                totalLength.set(0);
+                out.writeTotals(0, 0L);
+                out.flush();
+
+                BlockingQueue<FileInfo> queue = filesToSend;
+                listing = server.getScanExecutor().submit(() -> streamFileList(manifest, queue, out));
+                return true;
+            } else if (command == MessageType.START) {
+                out.writeTotals(totalFiles.get(), totalLength.get());
+                out.writeFileList(MessageType.FILE_LIST, filesToSend);
+                out.writeScanComplete(globalTotalFiles.get(), globalTotalLength.get());
+                out.flush();
+            } else {
+                throw new ProtocolException("Unexpected " + command + " on managing socket");
+            }
+        } finally {
+            server.releaseScanIndex(scanIndex);
+        }
+        readDeleteServerProgress();
+        return true;
+    }
+
+    private void readDeleteServerProgress() throws IOException {
+        if (in.readType() == MessageType.DELETE_SERVER_PROGRESS) {
+            log.info("Session " + id + ": file list received by the client");
+        }
+    }
+
+    private void search(ScanIndex scanIndex) {
+        TransferPlanner planner = newPlanner(filesToSend::addAll);
+        Searcher.search(directory, scanIndex, (file, length, lastModified) -> {
+            totalLength.addAndGet(length);
+            totalFiles.addAndGet(1);
+            planner.add(file.toAbsolutePath().toString(), length, lastModified);
+        });
+        planner.finish();
+        globalTotalFiles.set(totalFiles.get());
+        globalTotalLength.set(totalLength.get());
+
+        log.info("Session " + id + ": searching ended. Found " + totalFiles + " files");
+    }
+
+    /**
+     * Searches the directory while the data sockets are already sending. Found files go to the queue
+     * and in batches to the client, together with the totals counted so far.
+     */
+    private Void streamFileList(Map<String, ManifestEntry> manifest, BlockingQueue<FileInfo> queue, FrameWriter out) throws Exception {
+        log.info("Session " + id + ": streaming search over directory");
+        globalTotalFiles.set(0);
+        globalTotalLength.set(0);
+
+        BlockingQueue<List<FileInfo>> groups = new LinkedBlockingQueue<>();
+        TransferPlanner planner = newPlanner(group -> {
+            queue.addAll(group);
+            groups.add(group);
+        });
+        Future<?> scan = server.getScanExecutor().submit(() -> {
+            ScanIndex scanIndex = server.acquireScanIndex(directory);
+            try {
+                Searcher.search(directory, scanIndex, (file, length, lastModified) -> {
+                    FileInfo current = compareWithClient(manifest, file.toAbsolutePath().toString(), length, lastModified, scanIndex);
+                    if (current == null) {
+                        return;
+                    }
+                    globalTotalFiles.incrementAndGet();
+                    globalTotalLength.addAndGet(current.fileLength);
+                    planner.add(current.fileName, current.fileLength, current.lastModified);
+                });
+                planner.finish();
+            } finally {
+                server.releaseScanIndex(scanIndex);
+            }
+        });
+
+        try {
+            boolean scanned = false;
+            while (!scanned) {
+                scanned = scan.isDone();
+                List<FileInfo> batch = new ArrayList<>();
+                List<FileInfo> group = groups.poll(LIST_FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+                while (group != null) {
+                    batch.addAll(group);
+                    group = batch.size() < LIST_BATCH_SIZE ? groups.poll() : null;
+                }
+                if (!batch.isEmpty()) {
+                    out.writeFileList(MessageType.FILE_LIST, batch);
+                    out.writeTotals(globalTotalFiles.get(), globalTotalLength.get());
+                    out.flush();
+                }
+                scanned = scanned && groups.isEmpty();
+            }
+            scan.get();
+
+            out.writeScanComplete(globalTotalFiles.get(), globalTotalLength.get());
+            out.flush();
+            log.info("Session " + id + ": searching ended. Found " + globalTotalFiles + " files");
+
+            readDeleteServerProgress();
+        } catch (ExecutionException e) {
+            out.writeError("Searching failed");
+            out.flush();
+            throw e;
+        } finally {
+            scan.cancel(true);
+        }
+        return null;
+    }
+
+    /**
+     * Compares a found file with the client's copy. A file the client seems to have is read once more before
+     * it is left out, it may have been rewritten since the search; if it changed, its directory is listed
+     * again by the next search.
+     *
+     * @return {@code null} if the client has the file, otherwise the whole file with its current size
+     * and modification time
+     */
+    private FileInfo compareWithClient(Map<String, ManifestEntry> manifest, String fileName, long length, long lastModified, ScanIndex scanIndex) {
+        FileInfo found = new FileInfo(fileName, 0L, length, length, lastModified);
+        ManifestEntry entry = manifest.get(fileName);
+        if (entry == null || entry.size() != length || entry.lastModified() != lastModified) {
+            return found;
+        }
+        Path file = Path.of(fileName);
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            if (attributes.size() == length && attributes.lastModifiedTime().toMillis() == lastModified) {
+                return null;
+            }
+            if (scanIndex != null) {
+                scanIndex.invalidate(file.getParent());
+            }
+            return new FileInfo(fileName, 0L, attributes.size(), attributes.size(), attributes.lastModifiedTime().toMillis());
+        } catch (IOException e) {
+            return found;
+        }
+    }
+
+    /**
+     * Leaves out the planned files the client already has and plans the changed ones again with their
+     * current size.
+     */
+    private List<FileInfo> withoutClientFiles(Collection<FileInfo> planned, Map<String, ManifestEntry> manifest, ScanIndex scanIndex) {
+        TransferPlanner planner = newPlanner(group -> {
+        });
+        Set<String> dropped = new HashSet<>();
+        List<FileInfo> replanned = new ArrayList<>();
+        for (FileInfo part : planned.stream().flatMap(f -> f.parts().stream()).filter(f -> f.offset == 0).toList()) {
+            FileInfo current = compareWithClient(manifest, part.fileName, part.fileLength, part.lastModified, scanIndex);
+            if (current == null) {
+                dropped.add(part.fileName);
+            } else if (current.fileLength != part.fileLength || current.lastModified != part.lastModified) {
+                dropped.add(part.fileName);
+                replanned.addAll(planner.plan(current.fileName, current.fileLength, current.lastModified));
+            }
+        }
+        List<FileInfo> result = TransferPlanner.without(planned, f -> dropped.contains(f.fileName));
+        result.addAll(replanned);
+        log.info("Session " + id + ": sync: " + manifest.size() + " files on the client, " + (dropped.size() - replanned.size()) + " files left out");
+        return result;
+    }
+
+    private TransferPlanner newPlanner(Consumer<List<FileInfo>> sink) {
+        return new TransferPlanner(props.getChunkThreshold(), props.getChunkSize(), props.getBundleThreshold(), props.getBundleSize(), sink);
+    }
+
+    /**
+     * Serves the data sockets until all of them ended with END. A client tuning its socket count joins more
+     * sockets during the copy and ends some early, every socket that joins is served until its END.
+     */
+    private void sendFiles(List<Socket> sockets) throws IOException, InterruptedException, ExecutionException {
+        log.info("Session " + id + ": remaining files to send: " + totalFiles + ", bytes: " + totalLength);
+
+        ExecutorService executor = TaskExecutors.newTaskExecutor("send-" + id, props.isVirtualThreads());
+        CompletionService<Integer> completion = new ExecutorCompletionService<>(executor);
+        try {
+            int running = 0;
+            for (Socket socket : sockets) {
+                completion.submit(newSendTask(socket));
+                running++;
+            }
+            while (running > 0) {
+                Socket socket = joined.poll();
+                if (socket != null) {
+                    sockets.add(socket);
+                    completion.submit(newSendTask(socket));
+                    running++;
+                    log.info("Session " + id + ": data socket joined, " + running + " sockets");
+                    continue;
+                }
+                Future<Integer> future = completion.poll(JOIN_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (future == null) {
+                    continue;
+                }
+                running--;
+                if (future.get() == -1) {
+                    // the client resumes in a new session
+                    throw new IOException("Client was disconnected");
+                }
+            }
+            log.info("Session " + id + ": all files sent");
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private FileSendTask newSendTask(Socket socket) {
+        RateLimits limits = server.getRateLimits();
+        return new FileSendTask(filesToSend, socket, hello.transferMode(), hello.zeroCopyChecksums(), hello.compression().newCodec(hello.compressionLevel()),
+                limits.global(), sessionLimit, limits.newSocketBucket());
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed by the client
+        }
+    }
+}
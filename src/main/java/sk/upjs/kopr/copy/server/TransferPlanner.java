@@ -0,0 +1,110 @@
+package sk.upjs.kopr.copy.server;
+
+import sk.upjs.kopr.copy.FileBundle;
+import sk.upjs.kopr.copy.FileInfo;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Turns found files into the work items of {@code filesToSend}. Files larger than the chunk threshold
+ * are split into byte ranges, so every data socket can claim a part of the same file. Runs of files
+ * smaller than the bundle threshold are packed into {@link FileBundle}s, so they cost one request.
+ * <p>
+ * Files can be added while the directory is still being searched. Every group passed to the sink holds
+ * all ranges of its files, a file is never split between two groups.
+ */
+public class TransferPlanner {
+
+    private final long chunkThreshold;
+    private final long chunkSize;
+    private final long bundleThreshold;
+    private final int bundleSize;
+    private final Consumer<List<FileInfo>> sink;
+
+    private final List<FileInfo> bundle = new ArrayList<>();
+
+    public TransferPlanner(long chunkThreshold, long chunkSize, long bundleThreshold, int bundleSize) {
+        this(chunkThreshold, chunkSize, bundleThreshold, bundleSize, group -> {
+        });
+    }
+
+    public TransferPlanner(long chunkThreshold, long chunkSize, long bundleThreshold, int bundleSize, Consumer<List<FileInfo>> sink) {
+        this.chunkThreshold = chunkThreshold;
+        this.chunkSize = chunkSize;
+        this.bundleThreshold = bundleThreshold;
+        this.bundleSize = bundleSize;
+        this.sink = sink;
+    }
+
+    public List<FileInfo> plan(List<File> files) {
+        List<FileInfo> result = new ArrayList<>();
+        TransferPlanner planner = new TransferPlanner(chunkThreshold, chunkSize, bundleThreshold, bundleSize, result::addAll);
+        for (File file : files) {
+            planner.add(file.getAbsolutePath(), file.length(), file.lastModified());
+        }
+        planner.finish();
+        return result;
+    }
+
+    public synchronized void add(String fileName, long fileLength, long lastModified) {
+        if (bundleSize > 1 && fileLength < bundleThreshold) {
+            bundle.add(new FileInfo(fileName, 0L, fileLength, fileLength, lastModified));
+            if (bundle.size() == bundleSize) {
+                flushBundle();
+            }
+        } else {
+            sink.accept(plan(fileName, fileLength, lastModified));
+        }
+    }
+
+    /**
+     * Passes the last incomplete bundle to the sink.
+     */
+    public synchronized void finish() {
+        flushBundle();
+    }
+
+    public List<FileInfo> plan(String fileName, long fileLength, long lastModified) {
+        List<FileInfo> result = new ArrayList<>();
+        if (chunkThreshold <= 0 || chunkSize <= 0 || fileLength <= chunkThreshold) {
+            result.add(new FileInfo(fileName, 0L, fileLength, fileLength, lastModified));
+            return result;
+        }
+        for (long offset = 0; offset < fileLength; offset += chunkSize) {
+            result.add(new FileInfo(fileName, offset, Math.min(offset + chunkSize, fileLength), fileLength, lastModified));
+        }
+        return result;
+    }
+
+    /**
+     * Removes the ranges of the given files from planned work items. A bundle keeps its other members.
+     */
+    public static List<FileInfo> without(Collection<FileInfo> workItems, Predicate<FileInfo> skip) {
+        List<FileInfo> result = new ArrayList<>();
+        for (FileInfo workItem : workItems) {
+            List<FileInfo> parts = workItem.parts().stream().filter(skip.negate()).toList();
+            if (parts.size() == workItem.parts().size()) {
+                result.add(workItem);
+            } else if (parts.size() == 1) {
+                result.add(parts.get(0));
+            } else if (!parts.isEmpty()) {
+                result.add(new FileBundle(parts));
+            }
+        }
+        return result;
+    }
+
+    private void flushBundle() {
+        if (bundle.size() == 1) {
+            sink.accept(List.of(bundle.get(0)));
+        } else if (!bundle.isEmpty()) {
+            sink.accept(List.of(new FileBundle(bundle)));
+        }
+        bundle.clear();
+    }
+}
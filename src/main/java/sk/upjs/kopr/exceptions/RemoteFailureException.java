@@ -0,0 +1,17 @@
+package sk.upjs.kopr.exceptions;
+
+import java.io.Serial;
+import java.net.ProtocolException;
+
+/**
+ * The other side reported with an ERROR frame that it cannot go on. Reconnecting would fail the same way.
+ */
+public class RemoteFailureException extends ProtocolException {
+
+    @Serial
+    private static final long serialVersionUID = -6480935172045823147L;
+
+    public RemoteFailureException(String message) {
+        super(message);
+    }
+}
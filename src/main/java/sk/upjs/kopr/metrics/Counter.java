@@ -0,0 +1,38 @@
+package sk.upjs.kopr.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A monotonic count, cheap to increment from many threads.
+ */
+public class Counter extends Metric {
+
+    protected final LongAdder count = new LongAdder();
+
+    Counter(String name, String labels) {
+        super(name, labels);
+    }
+
+    public void increment() {
+        count.increment();
+    }
+
+    public void add(long amount) {
+        count.add(amount);
+    }
+
+    public long get() {
+        return count.sum();
+    }
+
+    @Override
+    void appendText(StringBuilder text) {
+        text.append(key(name + "_total")).append(' ').append(get()).append('\n');
+    }
+
+    @Override
+    void collect(Map<String, Object> attributes) {
+        attributes.put(key(name + "_total"), get());
+    }
+}
@@ -0,0 +1,31 @@
+package sk.upjs.kopr.metrics;
+
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * A value read from its owner at the time of the scrape, such as the length of a queue.
+ */
+public class Gauge extends Metric {
+
+    private final LongSupplier value;
+
+    Gauge(String name, String labels, LongSupplier value) {
+        super(name, labels);
+        this.value = value;
+    }
+
+    public long get() {
+        return value.getAsLong();
+    }
+
+    @Override
+    void appendText(StringBuilder text) {
+        text.append(key()).append(' ').append(get()).append('\n');
+    }
+
+    @Override
+    void collect(Map<String, Object> attributes) {
+        attributes.put(key(), get());
+    }
+}
@@ -0,0 +1,95 @@
+package sk.upjs.kopr.metrics;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts durations into buckets whose upper bounds double from 1 µs to about 35 minutes. Recording costs two
+ * {@link LongAdder} increments, the percentiles are estimated from the buckets at the time of the scrape.
+ */
+public class LatencyHistogram extends Metric {
+
+    private static final int BUCKETS = 32;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder sumNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    LatencyHistogram(String name, String labels) {
+        super(name, labels);
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos) / 1000;
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets[bucket].increment();
+        sumNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    /**
+     * Records the time passed since {@code startNanos}, a value of {@link System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    private static long upperBoundMicros(int bucket) {
+        return 1L << bucket;
+    }
+
+    private long[] counts() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    private static long percentileMicros(long[] counts, long total, double percentile) {
+        long rank = (long) Math.ceil(total * percentile);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return upperBoundMicros(i);
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    void appendText(StringBuilder text) {
+        long[] counts = counts();
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            cumulative += counts[i];
+            if (counts[i] > 0 || i == BUCKETS - 1) {
+                double le = upperBoundMicros(i) / 1e6;
+                text.append(key(name + "_seconds_bucket", "le=\"" + le + "\"")).append(' ').append(cumulative).append('\n');
+            }
+        }
+        text.append(key(name + "_seconds_bucket", "le=\"+Inf\"")).append(' ').append(cumulative).append('\n');
+        text.append(key(name + "_seconds_sum")).append(' ').append(sumNanos.sum() / 1e9).append('\n');
+        text.append(key(name + "_seconds_count")).append(' ').append(cumulative).append('\n');
+    }
+
+    @Override
+    void collect(Map<String, Object> attributes) {
+        long[] counts = counts();
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        attributes.put(key(name + "_count"), total);
+        attributes.put(key(name + "_mean_micros"), total == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(sumNanos.sum() / total));
+        attributes.put(key(name + "_p50_micros"), percentileMicros(counts, total, 0.5));
+        attributes.put(key(name + "_p99_micros"), percentileMicros(counts, total, 0.99));
+        attributes.put(key(name + "_max_micros"), TimeUnit.NANOSECONDS.toMicros(maxNanos.get()));
+    }
+}
@@ -0,0 +1,42 @@
+package sk.upjs.kopr.metrics;
+
+import java.util.Map;
+
+/**
+ * A counter that also keeps its rate per second, smoothed over about {@link #SMOOTHING_SECONDS}.
+ */
+public class Meter extends Counter {
+
+    private static final double SMOOTHING_SECONDS = 5;
+
+    private long lastCount;
+    private volatile double rate;
+
+    Meter(String name, String labels) {
+        super(name, labels);
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    @Override
+    void tick(double seconds) {
+        long current = get();
+        double instant = (current - lastCount) / seconds;
+        lastCount = current;
+        rate += (1 - Math.exp(-seconds / SMOOTHING_SECONDS)) * (instant - rate);
+    }
+
+    @Override
+    void appendText(StringBuilder text) {
+        super.appendText(text);
+        text.append(key(name + "_per_second")).append(' ').append(String.format("%.1f", rate)).append('\n');
+    }
+
+    @Override
+    void collect(Map<String, Object> attributes) {
+        super.collect(attributes);
+        attributes.put(key(name + "_per_second"), rate);
+    }
+}
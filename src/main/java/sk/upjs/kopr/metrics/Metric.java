@@ -0,0 +1,48 @@
+package sk.upjs.kopr.metrics;
+
+import java.util.Map;
+
+/**
+ * A named value of the {@link Metrics} registry, optionally told apart from others of the same name by labels.
+ */
+public abstract class Metric {
+
+    protected final String name;
+    protected final String labels;
+
+    protected Metric(String name, String labels) {
+        this.name = name;
+        this.labels = labels;
+    }
+
+    /**
+     * @return the name with the labels as they appear in the scrape, e.g. {@code client_received_bytes{socket="4711"}}
+     */
+    public String key() {
+        return key(name);
+    }
+
+    protected String key(String series) {
+        return labels.isEmpty() ? series : series + "{" + labels + "}";
+    }
+
+    protected String key(String series, String extraLabel) {
+        return series + "{" + (labels.isEmpty() ? "" : labels + ",") + extraLabel + "}";
+    }
+
+    /**
+     * Appends the lines of the plain text scrape.
+     */
+    abstract void appendText(StringBuilder text);
+
+    /**
+     * Puts the JMX attributes of this metric.
+     */
+    abstract void collect(Map<String, Object> attributes);
+
+    /**
+     * Called by the registry once a second.
+     */
+    void tick(double seconds) {
+    }
+}
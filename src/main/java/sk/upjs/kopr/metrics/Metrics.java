@@ -0,0 +1,136 @@
+package sk.upjs.kopr.metrics;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of the transfer telemetry of the server and the client. Every metric is exported as an attribute of the
+ * {@code sk.upjs.kopr:type=Metrics} MBean and, once {@link #startEndpoint(int)} was called, as plain text to
+ * any local collector polling {@code http://localhost:<port>/metrics}.
+ */
+@Slf4j
+public class Metrics {
+
+    public static final String OBJECT_NAME = "sk.upjs.kopr:type=Metrics";
+    private static final long TICK_MILLIS = 1000;
+
+    private static final Metrics instance = new Metrics();
+
+    private final ConcurrentMap<String, Metric> metrics = new ConcurrentSkipListMap<>();
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "metrics-ticker");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private MetricsEndpoint endpoint;
+
+    private Metrics() {
+        ticker.scheduleAtFixedRate(() -> metrics.values().forEach(metric -> metric.tick(TICK_MILLIS / 1000.0)),
+                TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(this), new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            log.warn("Metrics are not exported through JMX: " + e);
+        }
+    }
+
+    public static Metrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param labels pairs of label names and values
+     */
+    public Counter counter(String name, String... labels) {
+        return register(new Counter(name, labels(labels)));
+    }
+
+    public Meter meter(String name, String... labels) {
+        return register(new Meter(name, labels(labels)));
+    }
+
+    public LatencyHistogram histogram(String name, String... labels) {
+        return register(new LatencyHistogram(name, labels(labels)));
+    }
+
+    /**
+     * Registers a value read at the time of every scrape, replacing an older gauge of the same name.
+     */
+    public Gauge gauge(String name, LongSupplier value, String... labels) {
+        Gauge gauge = new Gauge(name, labels(labels), value);
+        metrics.put(gauge.key(), gauge);
+        return gauge;
+    }
+
+    /**
+     * Removes a metric of a resource that no longer exists, such as a closed socket.
+     */
+    public void remove(Metric metric) {
+        metrics.remove(metric.key(), metric);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends Metric> T register(T metric) {
+        return (T) metrics.computeIfAbsent(metric.key(), key -> metric);
+    }
+
+    private static String labels(String... labels) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (!result.isEmpty()) {
+                result.append(',');
+            }
+            result.append(labels[i]).append("=\"").append(labels[i + 1].replace("\"", "\\\"")).append('"');
+        }
+        return result.toString();
+    }
+
+    /**
+     * @return all metrics in the plain text exposition format, one sample per line
+     */
+    public String scrape() {
+        StringBuilder text = new StringBuilder();
+        for (Metric metric : metrics.values()) {
+            metric.appendText(text);
+        }
+        return text.toString();
+    }
+
+    Map<String, Object> attributes() {
+        Map<String, Object> attributes = new TreeMap<>();
+        for (Metric metric : metrics.values()) {
+            metric.collect(attributes);
+        }
+        return attributes;
+    }
+
+    /**
+     * Starts serving the scrape on the loopback interface, once per process.
+     *
+     * @param port the port, 0 leaves the endpoint off
+     */
+    public synchronized void startEndpoint(int port) {
+        if (port <= 0 || endpoint != null) {
+            return;
+        }
+        try {
+            endpoint = new MetricsEndpoint(this, port);
+            endpoint.start();
+            log.info("Metrics are served on http://localhost:" + port + "/metrics");
+        } catch (IOException e) {
+            log.warn("Metrics endpoint cannot listen on port " + port + ": " + e);
+        }
+    }
+}
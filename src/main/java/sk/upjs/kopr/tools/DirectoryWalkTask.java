@@ -0,0 +1,177 @@
+package sk.upjs.kopr.tools;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.Serial;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Walks one directory and forks a subtask for every subdirectory. A worker waiting in {@code join()}
+ * runs other queued tasks, so the depth of the tree does not block the pool.
+ * <p>
+ * Found files are passed to the sink together with their size and modification time, read from the
+ * same attributes that tell files and directories apart.
+ */
+@Slf4j
+public class DirectoryWalkTask extends RecursiveAction {
+
+	@Serial
+	private static final long serialVersionUID = 2950317846529180613L;
+
+	// a task lives only in its pool, it is serializable just because ForkJoinTask is
+	private final transient Path directory;
+	private final transient SearchSink sink;
+	private final transient ScanIndex index;
+
+	/**
+	 * @param sink receives every regular file with its size and modification time
+	 */
+	public DirectoryWalkTask(Path directory, SearchSink sink) {
+		this(directory, sink, null);
+	}
+
+	/**
+	 * @param index lists unmodified directories and records the walked ones, may be {@code null}
+	 */
+	public DirectoryWalkTask(Path directory, SearchSink sink, ScanIndex index) {
+		this.directory = directory;
+		this.sink = sink;
+		this.index = index;
+	}
+
+	@Override
+	protected void compute() {
+		List<DirectoryWalkTask> subtasks = new ArrayList<>();
+		if (index == null) {
+			walk(subtasks);
+		} else {
+			walkIndexed(subtasks);
+		}
+
+		for (DirectoryWalkTask subtask : subtasks) {
+			subtask.join();
+		}
+	}
+
+	private void walk(List<DirectoryWalkTask> subtasks) {
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+			for (Path entry : entries) {
+				BasicFileAttributes attributes = readAttributes(entry);
+				if (attributes == null) {
+					continue;
+				}
+				if (attributes.isDirectory()) {
+					fork(entry, subtasks);
+				} else if (attributes.isRegularFile()) {
+					sink.accept(entry, attributes.size(), attributes.lastModifiedTime().toMillis());
+				}
+			}
+		} catch (IOException e) {
+			log.warn("Cannot read directory " + directory + ": " + e);
+		}
+	}
+
+	private void walkIndexed(List<DirectoryWalkTask> subtasks) {
+		long modified;
+		try {
+			// read before listing, a change made during the listing leaves the directory modified for the next search
+			modified = Files.getLastModifiedTime(directory).to(TimeUnit.NANOSECONDS);
+		} catch (IOException e) {
+			log.warn("Cannot read directory " + directory + ": " + e);
+			return;
+		}
+
+		ScanIndex.DirectoryEntry entry = index.lookup(directory, modified);
+		entry = entry == null ? list(modified) : refresh(entry);
+		index.record(directory, entry);
+
+		for (ScanIndex.FileEntry file : entry.files()) {
+			sink.accept(directory.resolve(file.name()), file.size(), file.modified());
+		}
+		for (String subdirectory : entry.directories()) {
+			fork(directory.resolve(subdirectory), subtasks);
+		}
+	}
+
+	/**
+	 * An unchanged directory saves only its listing. A file rewritten in place does not touch its directory, so every
+	 * file is read again; one planned with an old size would be truncated on the client or end the send early.
+	 */
+	private ScanIndex.DirectoryEntry refresh(ScanIndex.DirectoryEntry entry) {
+		List<ScanIndex.FileEntry> files = new ArrayList<>(entry.files().size());
+		boolean changed = false;
+		for (ScanIndex.FileEntry file : entry.files()) {
+			BasicFileAttributes attributes = readAttributes(directory.resolve(file.name()));
+			if (attributes == null || !attributes.isRegularFile()) {
+				changed = true;
+				continue;
+			}
+			long size = attributes.size();
+			long lastModified = attributes.lastModifiedTime().toMillis();
+			if (size != file.size() || lastModified != file.modified()) {
+				changed = true;
+				files.add(new ScanIndex.FileEntry(file.name(), size, lastModified, file.fileKey()));
+			} else {
+				files.add(file);
+			}
+		}
+		return changed ? new ScanIndex.DirectoryEntry(entry.modified(), files, entry.directories()) : entry;
+	}
+
+	private ScanIndex.DirectoryEntry list(long modified) {
+		List<ScanIndex.FileEntry> files = new ArrayList<>();
+		List<String> directories = new ArrayList<>();
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+			for (Path entry : entries) {
+				BasicFileAttributes attributes = readAttributes(entry);
+				if (attributes == null) {
+					continue;
+				}
+				String name = entry.getFileName().toString();
+				if (attributes.isDirectory()) {
+					directories.add(name);
+				} else if (attributes.isRegularFile()) {
+					Object fileKey = attributes.fileKey();
+					files.add(new ScanIndex.FileEntry(name, attributes.size(),
+							attributes.lastModifiedTime().toMillis(), fileKey == null ? "" : fileKey.toString()));
+				}
+			}
+		} catch (IOException e) {
+			log.warn("Cannot read directory " + directory + ": " + e);
+			modified = -1; // list it again next time
+		}
+		return new ScanIndex.DirectoryEntry(modified, files, directories);
+	}
+
+	private void fork(Path subdirectory, List<DirectoryWalkTask> subtasks) {
+		DirectoryWalkTask subtask = new DirectoryWalkTask(subdirectory, sink, index);
+		subtask.fork();
+		subtasks.add(subtask);
+	}
+
+	/**
+	 * Links are followed only to files, a linked directory could lead back into the walked tree.
+	 */
+	private BasicFileAttributes readAttributes(Path entry) {
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			if (attributes.isSymbolicLink()) {
+				BasicFileAttributes target = Files.readAttributes(entry, BasicFileAttributes.class);
+				return target.isRegularFile() ? target : null;
+			}
+			return attributes;
+		} catch (IOException e) {
+			log.warn("Cannot read attributes of " + entry + ": " + e);
+			return null;
+		}
+	}
+}
@@ -1,16 +1,24 @@
 package sk.upjs.kopr.tools;
 
 public class FilePathChanger {
-	
-	public static final String dirRoot = PropertiesManager.getInstance().getDirectory();
-	public static final String pathToSave = PropertiesManager.getInstance().getPathToSave();
 
 	public static String getLastDirectoryName(String path) {
 		String[] parts = path.split("\\\\");
 		return parts[parts.length - 1];
 	}
 
-	public static String modifyBasePath(String original) {
+	/**
+	 * @return the path of the copy of a file from {@code dirRoot} saved under {@code pathToSave}
+	 */
+	public static String modifyBasePath(String original, String dirRoot, String pathToSave) {
 		return original.replace(dirRoot, pathToSave + "\\"+getLastDirectoryName(dirRoot) + "_copy");
 	}
+
+	/**
+	 * @return the name the server uses for the copied file, or {@code null} if the file lies outside the copy
+	 */
+	public static String restoreBasePath(String copy, String dirRoot, String pathToSave) {
+		String copyRoot = modifyBasePath(dirRoot, dirRoot, pathToSave);
+		return copy.startsWith(copyRoot) ? dirRoot + copy.substring(copyRoot.length()) : null;
+	}
 }
@@ -1,7 +1,12 @@
 package sk.upjs.kopr.tools;
 
+import sk.upjs.kopr.copy.TransferMode;
+import sk.upjs.kopr.copy.compression.Compression;
+
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
 
 public class PropertiesManager {
@@ -46,6 +51,17 @@ public class PropertiesManager {
 		return this.properties.getProperty("directory");
 	}
 
+	/**
+	 * Overrides any property, e.g. with the {@code key=value} arguments of a launcher.
+	 */
+	public void setProperty(String key, String value) {
+		this.properties.setProperty(key, value);
+	}
+
+	public void setDirectory(String value) {
+		this.properties.setProperty("directory", value);
+	}
+
 	public String getPathToSave() {
 		return this.properties.getProperty("pathToSave");
 	}
@@ -53,6 +69,137 @@ public class PropertiesManager {
 	public void setPathToSave(String value) {
 		this.properties.setProperty("pathToSave", value);
 	}
+
+	public TransferMode getTransferMode() {
+		return TransferMode.fromString(this.properties.getProperty("transferMode"));
+	}
+
+	public boolean isZeroCopyChecksums() {
+		return Boolean.parseBoolean(this.properties.getProperty("zeroCopyChecksums", "true"));
+	}
+
+	public void setTransferMode(TransferMode value) {
+		this.properties.setProperty("transferMode", value.toString());
+	}
+
+	public Compression getCompression() {
+		return Compression.fromString(this.properties.getProperty("compression"));
+	}
+
+	public void setCompression(Compression value) {
+		this.properties.setProperty("compression", value.toString());
+	}
+
+	public int getCompressionLevel() {
+		return Integer.parseInt(this.properties.getProperty("compressionLevel", "1"));
+	}
+
+	public void setCompressionLevel(int value) {
+		this.properties.setProperty("compressionLevel", value + "");
+	}
+
+	public long getChunkThreshold() {
+		return Long.parseLong(this.properties.getProperty("chunkThreshold", "67108864"));
+	}
+
+	public long getChunkSize() {
+		return Long.parseLong(this.properties.getProperty("chunkSize", "16777216"));
+	}
+
+	public long getBundleThreshold() {
+		return Long.parseLong(this.properties.getProperty("bundleThreshold", "16384"));
+	}
+
+	public int getBundleSize() {
+		return Integer.parseInt(this.properties.getProperty("bundleSize", "128"));
+	}
+
+	public int getPipelineWindow() {
+		return Integer.parseInt(this.properties.getProperty("pipelineWindow", "8"));
+	}
+
+	public String getScanIndex() {
+		return this.properties.getProperty("scanIndex", "scan_index.bin").trim();
+	}
+
+	public boolean isDeltaMode() {
+		return Boolean.parseBoolean(this.properties.getProperty("deltaMode", "false"));
+	}
+
+	public long getDeltaThreshold() {
+		return Long.parseLong(this.properties.getProperty("deltaThreshold", "1048576"));
+	}
+
+	public boolean isSyncMode() {
+		return Boolean.parseBoolean(this.properties.getProperty("syncMode", "false"));
+	}
+
+	public boolean isStreamingScan() {
+		return Boolean.parseBoolean(this.properties.getProperty("streamingScan", "false"));
+	}
+
+	public long getJournalSyncMillis() {
+		return Long.parseLong(this.properties.getProperty("journalSyncMillis", "1000"));
+	}
+
+	public boolean isJournalFsync() {
+		return Boolean.parseBoolean(this.properties.getProperty("journalFsync", "true"));
+	}
+
+	public long getProgressIntervalMillis() {
+		return Long.parseLong(this.properties.getProperty("progressIntervalMillis", "100"));
+	}
+
+	public int getMetricsPort() {
+		return Integer.parseInt(this.properties.getProperty("metricsPort", "0"));
+	}
+
+	public int getMaxOpenFiles() {
+		return Integer.parseInt(this.properties.getProperty("maxOpenFiles", "1024"));
+	}
+
+	public boolean isVirtualThreads() {
+		return Boolean.parseBoolean(this.properties.getProperty("virtualThreads", "false"));
+	}
+
+	public boolean isAutoTuneSockets() {
+		return Boolean.parseBoolean(this.properties.getProperty("autoTuneSockets", "false"));
+	}
+
+	public long getAutoTuneMillis() {
+		return Long.parseLong(this.properties.getProperty("autoTuneMillis", "2000"));
+	}
+
+	public int getMinSockets() {
+		return Integer.parseInt(this.properties.getProperty("minSockets", "1"));
+	}
+
+	public int getMaxSockets() {
+		return Integer.parseInt(this.properties.getProperty("maxSockets", "32"));
+	}
+
+	public String getScheduling() {
+		return this.properties.getProperty("scheduling", "fifo");
+	}
+
+	public List<String> getSchedulePriorities() {
+		return Arrays.stream(this.properties.getProperty("schedulePriorities", "").split(","))
+				.map(String::trim)
+				.filter(glob -> !glob.isEmpty())
+				.toList();
+	}
+
+	public long getRateLimit() {
+		return Long.parseLong(this.properties.getProperty("rateLimit", "0"));
+	}
+
+	public long getSessionRateLimit() {
+		return Long.parseLong(this.properties.getProperty("sessionRateLimit", "0"));
+	}
+
+	public long getSocketRateLimit() {
+		return Long.parseLong(this.properties.getProperty("socketRateLimit", "0"));
+	}
 	
 	
 }
\ No newline at end of file
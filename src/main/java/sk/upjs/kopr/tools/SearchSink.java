@@ -0,0 +1,14 @@
+package sk.upjs.kopr.tools;
+
+import java.nio.file.Path;
+
+/**
+ * Receives the files found by {@link Searcher}, from several threads at once.
+ */
+@FunctionalInterface
+public interface SearchSink {
+	/**
+	 * @param lastModified modification time of the file in milliseconds
+	 */
+	void accept(Path file, long size, long lastModified);
+}
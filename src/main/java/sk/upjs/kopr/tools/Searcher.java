@@ -1,26 +1,43 @@
 package sk.upjs.kopr.tools;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 
 public class Searcher {
-	private static final int THREAD_NUMBER = Runtime.getRuntime().availableProcessors();
+	private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), pool -> {
+		ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+		thread.setName("searcher-" + thread.getPoolIndex());
+		return thread;
+	}, null, false);
 
 	public static List<File> search(File file) {
-		ExecutorService executor = Executors.newFixedThreadPool(THREAD_NUMBER);
-		FileSearcherTask initialTask = new FileSearcherTask(file, executor);
-		Future<List<File>> futureResult = executor.submit(initialTask);
+		Queue<File> found = new ConcurrentLinkedQueue<>();
+		search(file, (path, size, lastModified) -> found.add(path.toFile()));
+		return new ArrayList<>(found);
+	}
+
+	/**
+	 * Passes every found file to the sink as soon as it is found.
+	 */
+	public static void search(File file, SearchSink sink) {
+		POOL.invoke(new DirectoryWalkTask(file.toPath(), sink));
+	}
 
-		try {
-			return futureResult.get();
-		} catch (InterruptedException | ExecutionException e) {
-			throw new RuntimeException(e);
-		} finally {
-			executor.shutdown();
+	/**
+	 * Like {@link #search(File, SearchSink)}, but lists only directories modified since the index was
+	 * built and takes the others from the index. The index is updated once the search completes.
+	 */
+	public static void search(File file, ScanIndex index, SearchSink sink) {
+		if (index == null) {
+			search(file, sink);
+			return;
 		}
+		POOL.invoke(new DirectoryWalkTask(file.toPath().toAbsolutePath(), sink, index));
+		index.commit();
 	}
 }
@@ -0,0 +1,167 @@
+package sk.upjs.kopr.tools;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import sk.upjs.kopr.metrics.Metrics;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Executors of the per-socket send and receive tasks. A task blocks on its socket for the whole transfer, with
+ * platform threads every socket costs a thread stack of its own; virtual threads park on the socket instead and
+ * share a few carrier threads, so hundreds of sockets per transfer and many transfers per JVM stay cheap.
+ */
+public class TaskExecutors {
+
+	private static final LongAdder platformTasks = new LongAdder();
+	private static final LongAdder virtualTasks = new LongAdder();
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private static final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+	private static final long threadStackSize = threadStackSize();
+	// exported by JDK 24 and newer, Java 21 only takes the parallelism of the scheduler from a system property
+	private static final String SCHEDULER_MBEAN = "jdk.management:type=VirtualThreadScheduler";
+	private static final String CARRIER_THREAD_GROUP = "CarrierThreads";
+
+	static {
+		Metrics metrics = Metrics.getInstance();
+		metrics.gauge("transfer_running_tasks", platformTasks::sum, "model", "platform");
+		metrics.gauge("transfer_running_tasks", virtualTasks::sum, "model", "virtual");
+		// the MXBean counts platform threads only, the carriers included
+		metrics.gauge("jvm_platform_threads", threads::getThreadCount);
+		metrics.gauge("jvm_platform_threads_peak", threads::getPeakThreadCount);
+		// the stacks of parked virtual threads live on the heap, those of platform threads are reserved outside it
+		metrics.gauge("jvm_heap_used_bytes", () -> memory.getHeapMemoryUsage().getUsed());
+		metrics.gauge("jvm_thread_stacks_reserved_bytes", () -> threads.getThreadCount() * threadStackSize);
+		metrics.gauge("jvm_virtual_thread_scheduler_parallelism", TaskExecutors::carrierParallelism);
+		metrics.gauge("jvm_virtual_thread_carriers", TaskExecutors::carrierThreads);
+	}
+
+	/**
+	 * Every task holds its thread for the life of its socket, so the platform pool grows with the sockets, which may
+	 * join and leave during a transfer, and reuses the threads of the sockets that ended.
+	 *
+	 * @param name    prefix of the thread names
+	 * @param virtual whether every task gets a virtual thread of its own
+	 */
+	public static ExecutorService newTaskExecutor(String name, boolean virtual) {
+		return new CountingExecutor(newUnboundedExecutor(name, virtual), virtual ? virtualTasks : platformTasks);
+	}
+
+	/**
+	 * @return an executor starting a thread for every submitted task, such as one per client session
+	 */
+	public static ExecutorService newUnboundedExecutor(String name, boolean virtual) {
+		if (virtual) {
+			return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+		}
+		AtomicInteger number = new AtomicInteger();
+		return Executors.newCachedThreadPool(r -> new Thread(r, name + "-" + number.getAndIncrement()));
+	}
+
+	/**
+	 * @return bytes reserved for the stack of a platform thread, {@code -Xss} or the default of the platform
+	 */
+	private static long threadStackSize() {
+		try {
+			HotSpotDiagnosticMXBean hotSpot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+			return Long.parseLong(hotSpot.getVMOption("ThreadStackSize").getValue()) * 1024;
+		} catch (RuntimeException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @return number of carrier threads the scheduler of the virtual threads aims to keep busy
+	 */
+	private static long carrierParallelism() {
+		Object parallelism = schedulerAttribute("Parallelism");
+		if (parallelism instanceof Number number) {
+			return number.longValue();
+		}
+		return Integer.getInteger("jdk.virtualThreadScheduler.parallelism", Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @return carrier threads started so far, a carrier blocked in a pinned virtual thread is compensated by another
+	 */
+	private static long carrierThreads() {
+		Object poolSize = schedulerAttribute("PoolSize");
+		if (poolSize instanceof Number number) {
+			return number.longValue();
+		}
+		// takes the stacks of all threads, but only once per scrape of the metrics
+		return Thread.getAllStackTraces().keySet().stream()
+				.filter(thread -> thread.getThreadGroup() != null && CARRIER_THREAD_GROUP.equals(thread.getThreadGroup().getName()))
+				.count();
+	}
+
+	private static Object schedulerAttribute(String attribute) {
+		try {
+			return ManagementFactory.getPlatformMBeanServer().getAttribute(new ObjectName(SCHEDULER_MBEAN), attribute);
+		} catch (JMException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Counts the tasks from their start to their end. A pooled thread outlives its task, so the threads of the pool
+	 * would keep counting an idle minute after their sockets ended.
+	 */
+	private static class CountingExecutor extends AbstractExecutorService {
+
+		private final ExecutorService executor;
+		private final LongAdder running;
+
+		CountingExecutor(ExecutorService executor, LongAdder running) {
+			this.executor = executor;
+			this.running = running;
+		}
+
+		@Override
+		public void execute(Runnable task) {
+			executor.execute(() -> {
+				running.increment();
+				try {
+					task.run();
+				} finally {
+					running.decrement();
+				}
+			});
+		}
+
+		@Override
+		public void shutdown() {
+			executor.shutdown();
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			return executor.shutdownNow();
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return executor.isShutdown();
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return executor.isTerminated();
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+			return executor.awaitTermination(timeout, unit);
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package sk.upjs.kopr.tools;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits a byte rate shared by any number of threads. Instead of counting tokens the bucket keeps the time at which
+ * the bytes reserved so far are paid off (the generic cell rate algorithm): a reservation moves that time forward by
+ * its cost and waits until it is reached, an idle bucket gives credit for at most one burst. The schedule is
+ * absolute, so a wait that overslept is made up by the next reservations and short waits are not slept at all but
+ * carried as debt; the average rate stays exact at any rate and chunk size.
+ */
+public class TokenBucket {
+
+	/** waits shorter than this are carried over to the next reservation instead of parking the thread */
+	private static final long MIN_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final LongSupplier rate;
+	private final long burstNanos;
+	private final AtomicLong paidOff = new AtomicLong(Long.MIN_VALUE);
+
+	/**
+	 * @param rate       bytes per second, read on every reservation so it can change at any time; 0 or less = unlimited
+	 * @param burstNanos how far ahead of the rate a sender may get after being idle
+	 */
+	public TokenBucket(LongSupplier rate, long burstNanos) {
+		this.rate = rate;
+		this.burstNanos = burstNanos;
+	}
+
+	/**
+	 * Reserves the bytes without waiting.
+	 *
+	 * @return nanoseconds the caller should wait before sending more, 0 if it is within the rate
+	 */
+	public long reserve(long bytes) {
+		long bytesPerSecond = rate.getAsLong();
+		if (bytesPerSecond <= 0) {
+			return 0;
+		}
+		long cost = (long) ((double) bytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond);
+		while (true) {
+			long now = System.nanoTime();
+			long current = paidOff.get();
+			// an idle bucket starts one burst back, older credit is lost
+			long start = current == Long.MIN_VALUE || current - (now - burstNanos) < 0 ? now - burstNanos : current;
+			long next = start + cost;
+			if (paidOff.compareAndSet(current, next)) {
+				return Math.max(0, next - now);
+			}
+		}
+	}
+
+	/**
+	 * Reserves the bytes in every bucket and waits for the slowest of them.
+	 *
+	 * @return nanoseconds the thread was parked
+	 */
+	public static long acquire(long bytes, TokenBucket... buckets) {
+		long wait = 0;
+		for (TokenBucket bucket : buckets) {
+			wait = Math.max(wait, bucket.reserve(bytes));
+		}
+		if (wait < MIN_PARK_NANOS) {
+			return 0;
+		}
+		long parkedAt = System.nanoTime();
+		long deadline = parkedAt + wait;
+		long left = wait;
+		while (left > 0) {
+			LockSupport.parkNanos(left);
+			if (Thread.currentThread().isInterrupted()) {
+				break;
+			}
+			left = deadline - System.nanoTime();
+		}
+		return System.nanoTime() - parkedAt;
+	}
+}
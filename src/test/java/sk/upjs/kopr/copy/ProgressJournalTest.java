@@ -0,0 +1,121 @@
+package sk.upjs.kopr.copy;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProgressJournalTest {
+
+	/** long enough for the tests to write every batch themselves */
+	private static final long SYNC_MILLIS = 60_000;
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void replayLeavesTheGapsOfPartlyCompletedRanges() throws IOException {
+		Path file = directory.resolve("progress.journal");
+		try (ProgressJournal journal = ProgressJournal.open(file, SYNC_MILLIS, false, null)) {
+			journal.clear();
+			journal.planned(List.of(new FileInfo("/data/a", 0, 1000, 1000, -86_400_000L),
+					new FileBundle(List.of(new FileInfo("/data/b", 0, 10), new FileInfo("/data/c", 0, 20))),
+					new FileInfo("/data/d", 0, 0, 0)));
+			journal.listed();
+			journal.completed("/data/a", 0, 300);
+			journal.completed("/data/a", 600, 700);
+			journal.completed("/data/b", 0, 10);
+			journal.completed("/data/d", 0, 0);
+		}
+
+		List<FileInfo> pending = pending(file);
+		assertEquals(3, pending.size());
+		assertRange("/data/a", 300, 600, pending.get(0));
+		assertRange("/data/a", 700, 1000, pending.get(1));
+		assertRange("/data/c", 0, 20, pending.get(2));
+		assertEquals(-86_400_000L, pending.get(0).lastModified);
+	}
+
+	@Test
+	void replayStopsAtATornRecord() throws IOException {
+		Path file = directory.resolve("progress.journal");
+		try (ProgressJournal journal = ProgressJournal.open(file, SYNC_MILLIS, false, null)) {
+			journal.clear();
+			journal.planned(List.of(new FileInfo("/data/a", 0, 100), new FileInfo("/data/b", 0, 100)));
+			journal.listed();
+			journal.completed("/data/a", 0, 100);
+			journal.sync();
+			journal.completed("/data/b", 0, 100);
+		}
+		// the last record was cut off in the middle by a crash
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() - 3);
+		}
+
+		List<FileInfo> pending = pending(file);
+		assertEquals(1, pending.size());
+		assertRange("/data/b", 0, 100, pending.get(0));
+	}
+
+	@Test
+	void incompleteFileListStartsOver() throws IOException {
+		Path file = directory.resolve("progress.journal");
+		try (ProgressJournal journal = ProgressJournal.open(file, SYNC_MILLIS, false, null)) {
+			journal.clear();
+			journal.planned(List.of(new FileInfo("/data/a", 0, 100)));
+		}
+
+		assertTrue(pending(file).isEmpty());
+	}
+
+	@Test
+	void compactionDuringATransferKeepsTheWorkLeft() throws IOException {
+		Path file = directory.resolve("progress.journal");
+		List<FileInfo> items = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			items.add(new FileInfo("/data/file" + i, 0, 10_000_000));
+		}
+		try (ProgressJournal journal = ProgressJournal.open(file, SYNC_MILLIS, false, null)) {
+			journal.clear();
+			journal.planned(items);
+			journal.listed();
+			for (int i = 0; i < 19; i++) {
+				for (long offset = 0; offset < 10_000_000; offset += 1000) {
+					journal.completed("/data/file" + i, offset, offset + 1000);
+				}
+				journal.sync();
+			}
+			journal.completed("/data/file19", 0, 5000);
+		}
+
+		// the 190 000 records of the completed files take 7 MB, the journal is compacted once it grows by 4 MB
+		assertTrue(Files.size(file) < 5 << 20, "journal of " + Files.size(file) + " bytes");
+		List<FileInfo> pending = pending(file);
+		assertEquals(1, pending.size());
+		assertRange("/data/file19", 5000, 10_000_000, pending.get(0));
+	}
+
+	private static List<FileInfo> pending(Path file) {
+		ProgressJournal journal = ProgressJournal.open(file, SYNC_MILLIS, false, null);
+		try {
+			return new ArrayList<>(journal.pending());
+		} finally {
+			journal.close();
+		}
+	}
+
+	private static void assertRange(String fileName, long offset, long size, FileInfo actual) {
+		assertEquals(fileName, actual.fileName);
+		assertEquals(offset, actual.offset);
+		assertEquals(size, actual.size);
+	}
+}
@@ -0,0 +1,102 @@
+package sk.upjs.kopr.copy.client;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import sk.upjs.kopr.copy.FileInfo;
+import sk.upjs.kopr.copy.ProgressJournal;
+import sk.upjs.kopr.copy.TransferMode;
+import sk.upjs.kopr.copy.compression.Compression;
+import sk.upjs.kopr.copy.server.FileSendTask;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+class DeltaPipelineTest {
+
+    private static final int SOCKET_BUFFER = 16 << 10;
+    private static final int FILE_LENGTH = 16 << 20;
+
+    @TempDir
+    Path root;
+
+    /**
+     * The signatures of a 16 MB copy take 80 KB, more than the socket buffers hold. A delta request written behind
+     * a response still in flight would block both sides in write.
+     */
+    @Test
+    void pipelinedDeltaRequestsLargerThanTheSocketBuffers() throws Exception {
+        Path source = Files.createDirectory(root.resolve("source"));
+        ClientConfig config = new ClientConfig("localhost", 0, 1, source.toString(), root.resolve("copy").toString(),
+                TransferMode.STREAM, true, Compression.NONE, 1, 4, false, 1, root.resolve("client.journal"), 1000,
+                false, 1000, false, 0, 1, 1, SchedulingPolicy.FIFO, List.of());
+
+        List<FileInfo> plan = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Path file = Files.write(source.resolve("file" + i), random(i, FILE_LENGTH));
+            // the old copy shares no block with the file, every response is as long as the file
+            File copy = config.copyOf(file.toString());
+            copy.getParentFile().mkdirs();
+            Files.write(copy.toPath(), random(100 + i, FILE_LENGTH));
+            plan.add(new FileInfo(file.toString(), 0, FILE_LENGTH, FILE_LENGTH, Files.getLastModifiedTime(file).toMillis()));
+        }
+        DeltaFiles deltaFiles = new DeltaFiles(config);
+        deltaFiles.select(plan);
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER);
+            serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            SocketChannel clientSide = SocketChannel.open();
+            clientSide.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER);
+            clientSide.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER);
+            clientSide.connect(serverChannel.getLocalAddress());
+            SocketChannel serverSide = serverChannel.accept();
+            serverSide.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER);
+
+            BlockingQueue<FileInfo> toReceive = new LinkedBlockingQueue<>(plan);
+            ProgressJournal journal = ProgressJournal.open(config.journal(), 1000, false, null);
+            Future<Integer> sent = executor.submit(new FileSendTask(new LinkedBlockingQueue<>(plan), serverSide.socket(),
+                    TransferMode.STREAM, true, null));
+            Future<Integer> received = executor.submit(new FileReceiveTask(toReceive, clientSide.socket(), new CountDownLatch(0),
+                    new FileCompletionTracker(toReceive), deltaFiles, journal, new TransferProgress(1000), config, null));
+
+            assertTimeoutPreemptively(Duration.ofSeconds(60), () -> {
+                assertEquals(1, received.get());
+                assertEquals(1, sent.get());
+            });
+            journal.close();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        for (FileInfo file : plan) {
+            assertArrayEquals(Files.readAllBytes(Path.of(file.fileName)), Files.readAllBytes(config.copyOf(file.fileName).toPath()));
+        }
+    }
+
+    private static byte[] random(long seed, int length) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
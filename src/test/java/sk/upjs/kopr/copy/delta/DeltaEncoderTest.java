@@ -0,0 +1,124 @@
+package sk.upjs.kopr.copy.delta;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeltaEncoderTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void unchangedFileIsSentAsBlocks() throws IOException {
+        byte[] old = random(1, 300_000);
+
+        Delta delta = roundTrip(old, old);
+        assertEquals(0, delta.literalBytes);
+    }
+
+    @Test
+    void insertedBytesAreTheOnlyLiteral() throws IOException {
+        byte[] old = random(2, 300_000);
+        byte[] inserted = random(3, 1000);
+        byte[] current = concat(Arrays.copyOf(old, 150_000), inserted, Arrays.copyOfRange(old, 150_000, old.length));
+
+        Delta delta = roundTrip(old, current);
+        // the block around the insertion point is sent as well
+        assertTrue(delta.literalBytes < inserted.length + 2L * BlockSignatures.blockSize(old.length), "literal " + delta.literalBytes);
+    }
+
+    @Test
+    void shrunkAndAppendedFile() throws IOException {
+        byte[] old = random(4, 100_003);
+        byte[] current = concat(Arrays.copyOfRange(old, 7, 60_000), random(5, 40_000), Arrays.copyOfRange(old, 90_000, old.length));
+
+        roundTrip(old, current);
+    }
+
+    @Test
+    void differentFileIsSentAsLiterals() throws IOException {
+        byte[] current = random(7, 200_000);
+
+        Delta delta = roundTrip(random(6, 200_000), current);
+        assertEquals(current.length, delta.literalBytes);
+    }
+
+    @Test
+    void emptyCopyHasNoBlocks() throws IOException {
+        byte[] current = random(8, 70_000);
+
+        Delta delta = roundTrip(new byte[0], current);
+        assertEquals(current.length, delta.literalBytes);
+    }
+
+    /**
+     * Encodes {@code current} against the signatures of {@code old} and rebuilds it from the blocks of {@code old}
+     * and the literals, as the client does.
+     */
+    private Delta roundTrip(byte[] old, byte[] current) throws IOException {
+        Path oldFile = Files.write(directory.resolve("old"), old);
+        Path currentFile = Files.write(directory.resolve("current"), current);
+        BlockSignatures signatures;
+        try (FileChannel channel = FileChannel.open(oldFile, StandardOpenOption.READ)) {
+            signatures = BlockSignatures.compute(channel, 0, old.length, BlockSignatures.blockSize(old.length));
+        }
+
+        Delta delta = new Delta(old, signatures);
+        try (FileChannel channel = FileChannel.open(currentFile, StandardOpenOption.READ)) {
+            new DeltaEncoder(channel, 0, current.length, signatures).encode(delta);
+        }
+        assertArrayEquals(current, delta.rebuilt.toByteArray());
+        return delta;
+    }
+
+    private static class Delta implements DeltaEncoder.Output {
+        private final byte[] old;
+        private final BlockSignatures signatures;
+        private final ByteArrayOutputStream rebuilt = new ByteArrayOutputStream();
+        private long literalBytes;
+
+        Delta(byte[] old, BlockSignatures signatures) {
+            this.old = old;
+            this.signatures = signatures;
+        }
+
+        @Override
+        public void literal(byte[] data, int offset, int length) {
+            assertTrue(length <= DeltaEncoder.MAX_LITERAL);
+            rebuilt.write(data, offset, length);
+            literalBytes += length;
+        }
+
+        @Override
+        public void block(int index) {
+            rebuilt.write(old, index * signatures.blockSize, signatures.blockLength(index));
+        }
+    }
+
+    private static byte[] random(long seed, int length) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.writeBytes(part);
+        }
+        return out.toByteArray();
+    }
+}
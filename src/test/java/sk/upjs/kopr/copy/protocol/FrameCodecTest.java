@@ -0,0 +1,208 @@
+package sk.upjs.kopr.copy.protocol;
+
+import org.junit.jupiter.api.Test;
+import sk.upjs.kopr.copy.FileBundle;
+import sk.upjs.kopr.copy.FileInfo;
+import sk.upjs.kopr.copy.TransferMode;
+import sk.upjs.kopr.copy.compression.Compression;
+import sk.upjs.kopr.copy.delta.BlockSignatures;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrameCodecTest {
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final FrameWriter out = new FrameWriter(bytes);
+
+    private FrameReader reader() throws IOException {
+        out.flush();
+        return new FrameReader(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    @Test
+    void helloRoundTrip() throws IOException {
+        out.writeHello(4, TransferMode.ZERO_COPY, false, Compression.DEFLATE, 6, "/data/photos");
+
+        Hello hello = reader().readHello();
+        assertEquals(Protocol.VERSION, hello.version());
+        assertEquals(4, hello.numberOfSockets());
+        assertEquals(TransferMode.ZERO_COPY, hello.transferMode());
+        assertFalse(hello.zeroCopyChecksums());
+        assertEquals(Compression.DEFLATE, hello.compression());
+        assertEquals(6, hello.compressionLevel());
+        assertEquals("/data/photos", hello.directory());
+    }
+
+    @Test
+    void sessionIdRoundTrip() throws IOException {
+        out.writeJoin(-2L);
+        out.flush();
+        assertEquals(Protocol.JOIN_LENGTH, bytes.size());
+        bytes.reset();
+        out.writeSession(0x8000_0000_FFFF_FFFFL);
+
+        assertEquals(0x8000_0000_FFFF_FFFFL, reader().readSession());
+    }
+
+    @Test
+    void fileListKeepsRangesBundlesAndTimesBefore1970() throws IOException {
+        FileInfo chunk = new FileInfo("/data/big.iso", 1L << 33, 3L << 32, 1L << 40, 1_700_000_000_000L);
+        FileInfo old = new FileInfo("/data/old.txt", 0, 11, 11, -157_766_400_000L);
+        FileBundle bundle = new FileBundle(List.of(new FileInfo("/data/a", 0, 1, 1, -1L), new FileInfo("/data/ž", 0, 0, 0, 0L)));
+        out.writeFileList(MessageType.FILE_LIST, List.of(chunk, old, bundle));
+
+        FrameReader in = reader();
+        assertEquals(MessageType.FILE_LIST, in.readType());
+        List<FileInfo> files = new ArrayList<>(in.readFileList());
+        assertEquals(3, files.size());
+        assertRange(chunk, files.get(0));
+        assertRange(old, files.get(1));
+        FileBundle read = assertInstanceOf(FileBundle.class, files.get(2));
+        assertEquals(2, read.files.size());
+        assertRange(bundle.files.get(0), read.files.get(0));
+        assertRange(bundle.files.get(1), read.files.get(1));
+    }
+
+    @Test
+    void manifestRoundTrip() throws IOException {
+        List<ManifestEntry> entries = List.of(new ManifestEntry("/data/a", 5, Long.MIN_VALUE),
+                new ManifestEntry("/data/b", Long.MAX_VALUE, Long.MAX_VALUE), new ManifestEntry("/data/c", 0, -1));
+        out.writeManifest(entries);
+
+        FrameReader in = reader();
+        in.expect(MessageType.MANIFEST);
+        assertEquals(entries, in.readManifest());
+    }
+
+    @Test
+    void dataFrameCarriesItsChecksum() throws IOException {
+        byte[] payload = "zero-copy or not, every frame is checked".getBytes(StandardCharsets.UTF_8);
+        out.writeData(42, payload, 5, 20);
+
+        FrameReader in = reader();
+        assertEquals(20, in.readDataHeader(42));
+        byte[] read = new byte[20];
+        in.readFully(read, 0, 20);
+        CRC32C crc = new CRC32C();
+        crc.update(payload, 5, 20);
+        assertEquals((int) crc.getValue(), in.getChecksum());
+        assertArrayEquals(Arrays.copyOfRange(payload, 5, 25), read);
+    }
+
+    @Test
+    void deltaRequestCarriesTheSignatures() throws IOException {
+        byte[][] strong = {new byte[BlockSignatures.STRONG_LENGTH], new byte[BlockSignatures.STRONG_LENGTH]};
+        strong[1][15] = 7;
+        BlockSignatures signatures = new BlockSignatures(2048, 100, new int[]{-1, 12345}, strong);
+        out.writeDeltaRequest(3, new FileInfo("/data/log", 0, 2148, 2148, 9L), signatures);
+
+        FrameReader in = reader();
+        assertEquals(MessageType.DELTA_REQUEST, in.readType());
+        assertEquals(3, in.readVarInt());
+        assertEquals("/data/log", in.readFileInfo().fileName);
+        BlockSignatures read = in.readBlockSignatures();
+        assertEquals(2048, read.blockSize);
+        assertEquals(100, read.lastBlockLength);
+        assertArrayEquals(signatures.weak, read.weak);
+        assertArrayEquals(signatures.strong, read.strong);
+    }
+
+    @Test
+    void bundleHeaderRoundTrip() throws IOException {
+        long[] lengths = new long[3000];
+        for (int i = 0; i < lengths.length; i++) {
+            lengths[i] = i * 31L;
+        }
+        out.writeBundleHeader(9, lengths);
+
+        FrameReader in = reader();
+        assertEquals(MessageType.BUNDLE, in.readType());
+        assertEquals(9, in.readVarInt());
+        assertArrayEquals(lengths, in.readBundleLengths());
+    }
+
+    @Test
+    void errorFrameEndsTheRead() throws IOException {
+        out.writeError("file shrank");
+
+        ProtocolException e = assertThrows(ProtocolException.class, () -> reader().readType());
+        assertTrue(e.getMessage().contains("file shrank"));
+    }
+
+    @Test
+    void rejectsCountAboveTheLimit() {
+        bytes.write(MessageType.MANIFEST.code);
+        writeVarLong(Protocol.MAX_ENTRIES + 1L);
+
+        assertThrows(ProtocolException.class, () -> {
+            FrameReader in = reader();
+            in.expect(MessageType.MANIFEST);
+            in.readManifest();
+        });
+    }
+
+    @Test
+    void rejectsVarIntBeyondAnInt() {
+        writeVarLong(1L << 31);
+
+        assertThrows(ProtocolException.class, () -> reader().readVarInt());
+    }
+
+    @Test
+    void rejectsNegativeRangeFields() {
+        // the writer refuses negative values, a peer sending a varint of ten bytes has the sign bit set
+        for (int negative = 0; negative < 3; negative++) {
+            bytes.reset();
+            bytes.write(Protocol.KIND_RANGE);
+            writeVarLong(1);
+            bytes.write('a');
+            for (int field = 0; field < 3; field++) {
+                writeVarLong(field == negative ? -1L : 100);
+            }
+            writeVarLong(0);
+
+            assertThrows(ProtocolException.class, () -> reader().readFileInfo());
+        }
+    }
+
+    @Test
+    void countLargerThanTheFrameFailsAtItsEnd() {
+        writeVarLong(Protocol.MAX_ENTRIES);
+        writeVarLong(1);
+        writeVarLong(2);
+
+        assertThrows(EOFException.class, () -> reader().readBundleLengths());
+    }
+
+    private void writeVarLong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            bytes.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        bytes.write((int) value);
+    }
+
+    private static void assertRange(FileInfo expected, FileInfo actual) {
+        assertEquals(expected.fileName, actual.fileName);
+        assertEquals(expected.offset, actual.offset);
+        assertEquals(expected.size, actual.size);
+        assertEquals(expected.fileLength, actual.fileLength);
+        assertEquals(expected.lastModified, actual.lastModified);
+    }
+}
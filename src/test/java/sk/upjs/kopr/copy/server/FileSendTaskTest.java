@@ -0,0 +1,88 @@
+package sk.upjs.kopr.copy.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import sk.upjs.kopr.copy.FileBundle;
+import sk.upjs.kopr.copy.FileInfo;
+import sk.upjs.kopr.copy.TransferMode;
+import sk.upjs.kopr.copy.protocol.FrameReader;
+import sk.upjs.kopr.copy.protocol.FrameWriter;
+import sk.upjs.kopr.exceptions.RemoteFailureException;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileSendTaskTest {
+
+    @TempDir
+    Path directory;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final BlockingQueue<FileInfo> files = new LinkedBlockingQueue<>();
+    private SocketChannel clientSide;
+    private Future<Integer> sent;
+
+    @BeforeEach
+    void connect() throws IOException {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            clientSide = SocketChannel.open(serverChannel.getLocalAddress());
+            SocketChannel serverSide = serverChannel.accept();
+            sent = executor.submit(new FileSendTask(files, serverSide.socket(), TransferMode.STREAM, true, null));
+        }
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        clientSide.close();
+        executor.shutdownNow();
+    }
+
+    @Test
+    void missingFileIsReportedInsteadOfRequeued() throws Exception {
+        FileInfo missing = new FileInfo(directory.resolve("deleted").toString(), 0, 100, 100, 0L);
+        files.add(missing);
+
+        assertFailure(missing, "Cannot open");
+    }
+
+    @Test
+    void missingFileOfABundleIsReportedBeforeItsHeader() throws Exception {
+        Path present = Files.write(directory.resolve("present"), new byte[10]);
+        FileBundle bundle = new FileBundle(List.of(new FileInfo(present.toString(), 0, 10, 10, 0L),
+                new FileInfo(directory.resolve("deleted").toString(), 0, 20, 20, 0L)));
+        files.add(bundle);
+
+        assertFailure(bundle, "Cannot read");
+    }
+
+    private void assertFailure(FileInfo request, String message) throws Exception {
+        FrameWriter out = new FrameWriter(clientSide.socket().getOutputStream());
+        out.writeRequest(0, request);
+        out.flush();
+
+        FrameReader in = new FrameReader(clientSide.socket().getInputStream());
+        RemoteFailureException e = assertThrows(RemoteFailureException.class, in::readType);
+        assertTrue(e.getMessage().contains(message), e.getMessage());
+        assertEquals(-1, sent.get(10, TimeUnit.SECONDS));
+        assertTrue(files.isEmpty());
+    }
+}